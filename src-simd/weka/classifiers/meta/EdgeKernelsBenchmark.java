@@ -0,0 +1,70 @@
+package weka.classifiers.meta;
+
+import java.util.Random;
+
+// This is a micro benchmark of the class-wise loops of the split scan in StumpAlgorithm, which compares the scalar
+// EdgeKernels with the SIMD VectorEdgeKernels on random weights and labels.
+// Usage: java --add-modules jdk.incubator.vector weka.classifiers.meta.EdgeKernelsBenchmark [n] [K,K,...]
+public class EdgeKernelsBenchmark {
+    public static void main (String[] argv) {
+        int numInstances = argv.length > 0 ? Integer.parseInt(argv[0]) : 20000;
+        String[] numClassesList = (argv.length > 1 ? argv[1] : "10,26,100,1000").split(",");
+
+        EdgeKernels[] kernels = {new EdgeKernels(), new VectorEdgeKernels()};
+
+        // The sum of the results of all the runs, which is printed so that the scans are not optimized away.
+        double checksum = 0;
+
+        System.out.println("K\t" + kernels[0].getName() + "(ns/instance)\t" + kernels[1].getName()
+                + "(ns/instance)\tSpeedup");
+        for (String item : numClassesList) {
+            int numClasses = Integer.parseInt(item.trim());
+
+            Random random = new Random(1);
+            double[][] weights = new double[numInstances][numClasses];
+            int[][] labels = new int[numInstances][numClasses];
+            for (int i = 0; i < numInstances; i++) {
+                int label = random.nextInt(numClasses);
+                for (int l = 0; l < numClasses; l++) {
+                    weights[i][l] = random.nextDouble() / numInstances / numClasses;
+                    labels[i][l] = (l == label) ? 1 : -1;
+                }
+            }
+
+            double[] nanos = new double[kernels.length];
+            for (int k = 0; k < kernels.length; k++) {
+                // Warm up, then measure the best of several runs
+                double best = Double.MAX_VALUE;
+                for (int run = 0; run < 40; run++) {
+                    long start = System.nanoTime();
+                    checksum += scan(kernels[k], weights, labels, numClasses);
+                    long elapsed = System.nanoTime() - start;
+                    if (run >= 10) {
+                        best = Math.min(best, elapsed);
+                    }
+                }
+                nanos[k] = best / numInstances;
+            }
+
+            System.out.println(numClasses + "\t" + String.format("%.2f", nanos[0]) + "\t"
+                    + String.format("%.2f", nanos[1]) + "\t" + String.format("%.2f", nanos[0] / nanos[1]));
+        }
+        System.out.println("Checksum: " + checksum);
+    }
+
+    // The same loops as StumpAlgorithm: initial edges, then one step and one energy per instance.
+    private static double scan (EdgeKernels kernels, double[][] weights, int[][] labels, int numClasses) {
+        double[] weightsPerClass = new double[numClasses];
+        double[] edges = new double[numClasses];
+        for (int i = 0; i < weights.length; i++) {
+            kernels.addWeightsAndEdges(weightsPerClass, edges, weights[i], labels[i], numClasses);
+        }
+
+        double best = 0;
+        for (int i = 0; i < weights.length; i++) {
+            kernels.subtractEdges(edges, weights[i], labels[i], numClasses);
+            best = Math.max(best, kernels.sumAbs(edges, numClasses));
+        }
+        return best;
+    }
+}
@@ -0,0 +1,82 @@
+package weka.classifiers.meta;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+// This is the SIMD implementation of EdgeKernels, using the Java Vector API (jdk.incubator.vector).
+// The weights and labels of an instance are contiguous arrays of length K, so they are processed by vectors of the
+// preferred size of the machine, and the remaining classes are processed one by one.
+// The labels (-1, 0 or +1) are converted from int lanes to double lanes before multiplying the weights.
+// When K is smaller than two vectors, the scalar loops of EdgeKernels are faster, so they are used.
+// Note: the sum of the absolute edges is reduced in a different order from the scalar implementation, so the energies
+// may differ in the last bits.
+public class VectorEdgeKernels extends EdgeKernels {
+    private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // Int vectors with the same number of lanes as the double vectors, that is half of the bits
+    private static final VectorSpecies<Integer> INT_SPECIES =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(DOUBLE_SPECIES.vectorBitSize() / 2));
+
+    public String getName () { return "simd-" + DOUBLE_SPECIES.length() + "xdouble"; }
+
+    // Convert K labels starting at l into a double vector.
+    private static DoubleVector labelsVector (int[] labels, int l) {
+        return (DoubleVector) IntVector.fromArray(INT_SPECIES, labels, l)
+                .convertShape(VectorOperators.I2D, DOUBLE_SPECIES, 0);
+    }
+
+    public void subtractEdges (double[] edges, double[] weights, int[] labels, int numClasses) {
+        if (numClasses < 2 * DOUBLE_SPECIES.length()) {
+            super.subtractEdges(edges, weights, labels, numClasses);
+            return;
+        }
+        int l = 0;
+        int upperBound = DOUBLE_SPECIES.loopBound(numClasses);
+        for (; l < upperBound; l += DOUBLE_SPECIES.length()) {
+            DoubleVector w = DoubleVector.fromArray(DOUBLE_SPECIES, weights, l);
+            DoubleVector e = DoubleVector.fromArray(DOUBLE_SPECIES, edges, l);
+            e.sub(w.mul(labelsVector(labels, l))).intoArray(edges, l);
+        }
+        for (; l < numClasses; l++) {
+            edges[l] -= weights[l] * labels[l];
+        }
+    }
+
+    public double sumAbs (double[] edges, int numClasses) {
+        if (numClasses < 2 * DOUBLE_SPECIES.length()) {
+            return super.sumAbs(edges, numClasses);
+        }
+        int l = 0;
+        int upperBound = DOUBLE_SPECIES.loopBound(numClasses);
+        DoubleVector sum = DoubleVector.zero(DOUBLE_SPECIES);
+        for (; l < upperBound; l += DOUBLE_SPECIES.length()) {
+            sum = sum.add(DoubleVector.fromArray(DOUBLE_SPECIES, edges, l).abs());
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; l < numClasses; l++) {
+            result += Math.abs(edges[l]);
+        }
+        return result;
+    }
+
+    public void addWeightsAndEdges (double[] weightsPerClass, double[] edges, double[] weights, int[] labels,
+                                    int numClasses) {
+        if (numClasses < 2 * DOUBLE_SPECIES.length()) {
+            super.addWeightsAndEdges(weightsPerClass, edges, weights, labels, numClasses);
+            return;
+        }
+        int l = 0;
+        int upperBound = DOUBLE_SPECIES.loopBound(numClasses);
+        for (; l < upperBound; l += DOUBLE_SPECIES.length()) {
+            DoubleVector w = DoubleVector.fromArray(DOUBLE_SPECIES, weights, l);
+            DoubleVector.fromArray(DOUBLE_SPECIES, weightsPerClass, l).add(w).intoArray(weightsPerClass, l);
+            DoubleVector.fromArray(DOUBLE_SPECIES, edges, l).add(w.mul(labelsVector(labels, l))).intoArray(edges, l);
+        }
+        for (; l < numClasses; l++) {
+            weightsPerClass[l] += weights[l];
+            edges[l] += weights[l] * labels[l];
+        }
+    }
+}
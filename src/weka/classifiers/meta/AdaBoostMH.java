@@ -18,6 +18,7 @@ package weka.classifiers.meta;
 import weka.classifiers.AbstractClassifier;
 import weka.classifiers.IterativeClassifier;
 import weka.core.*;
+import weka.core.converters.ArffLoader;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -25,6 +26,8 @@ import java.io.IOException;
 import java.io.Writer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 public class AdaBoostMH extends AbstractClassifier implements IterativeClassifier {
     // Extended instances, including all the original instances with wights and multiple labels, 
@@ -34,7 +37,15 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
     // Their labels would be changed in the m (m_M here) iterations of getting m product base learners, however, the
     // modified labels (virtual labels) would be restored to the original labels in the end of each of T iterations,
     // which outputs a product base learner.
-    protected ExtendedInstances m_extendedInsts;
+    // It is not saved with the model.
+    protected transient ExtendedInstances m_extendedInsts;
+
+    // Whether m_extendedInsts was built by this classifier, which then releases it (see "releaseTrainingData").
+    protected transient boolean m_ownsTrainingData;
+
+    // The header of the training data, which is saved with the model to score new data (see StreamingScorer).
+    // It is null when the classifier is trained on an ExtendedInstances object directly.
+    protected Instances m_header;
 
     // Keep all the base learners geeting from T (m_I here) iterations. They are not same because they have different
     // parameters: \alpha, vote vector V, function \varphi(x) (threshold and attribute used to split).
@@ -53,17 +64,202 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
     // The size of product to use for the base classifiers (m in the paper).
     protected int m_M = 3;
 
+    // Whether to print the progress of each iteration. Drivers training many classifiers at once turn it off.
+    protected boolean m_printProgress = true;
+
+    // The storage type of the attribute columns: "AUTO" detects the narrowest lossless type of each attribute,
+    // while BYTE, SHORT, FLOAT or DOUBLE is used for all the attributes which it can hold (FLOAT may round values).
+    protected String m_attrStorage = "AUTO";
+
+    // The directory of the memory-mapped files of the attribute columns. If it is empty, the columns are in the heap.
+    protected String m_diskDirectory = "";
+
+    // Whether to skip the estimate of the heap before training (see MemoryEstimator).
+    protected boolean m_skipMemoryCheck = false;
+
+    // Whether "classifyInstance" stops summing the terms once the predicted class can not change (see EarlyExitScorer).
+    protected boolean m_earlyExit = false;
+
+    // The early exit scorer of the current model, built when it is first used.
+    protected transient volatile EarlyExitScorer m_earlyExitScorer;
+
+    // The adaptive pruning of attributes (see AttributeActivity): an attribute whose best half edge stays below
+    // m_adaptiveRatio times the one of the selected attribute in m_adaptivePatience consecutive stump searches is
+    // skipped, until all the attributes are scanned again every m_adaptiveRecheck iterations.
+    // It is disabled if m_adaptivePatience is 0. Unlike m_pruneAttributes, the model may change.
+    protected int m_adaptivePatience = 0;
+    protected double m_adaptiveRatio = 0.5;
+    protected int m_adaptiveRecheck = 20;
+
+    // The tolerance of the sparse class mode, used when there are many classes. After each re-weighting, the weights
+    // smaller than this tolerance times the initial weight of a negative label are dropped, so the stump search only
+    // visits the kept classes of each instance, and the scoring uses compact vote vectors (see SparseVoteScorer).
+    // The model is approximate unless it is 0, which disables the mode.
+    protected double m_sparseClassTolerance = 0;
+
+    // The compact scorer of the current model in the sparse class mode, built when it is first used.
+    protected transient volatile SparseVoteScorer m_sparseVoteScorer;
+
+    // The wall-clock budget of the training in seconds, from the start of "initializeClassifier" (0: no budget).
+    // The iterations stop before the estimated time of the next one exceeds the remaining budget, so the model is
+    // always a valid model of fewer iterations. At least one iteration is performed.
+    protected double m_timeBudget = 0;
+
+    // Whether to shrink the work of the iterations when the remaining iterations can not finish within the remaining
+    // budget at the current pace: first the size of the products, then the share of the attributes searched by each
+    // stump, down to MIN_SAMPLE_RATE.
+    protected boolean m_budgetShrink = false;
+    protected static final double MIN_SAMPLE_RATE = 0.1;
+
+    // The start of the training, the average time of one stump search over all the attributes in the past iterations,
+    // the number of iterations with less work, and whether the budget stopped the iterations.
+    protected transient long m_budgetStartNanos;
+    protected transient double m_nanosPerStump;
+    protected transient int m_numShrunkIterations;
+    protected transient boolean m_budgetExhausted;
+
+    // Whether to skip the attributes which can not beat the best stump currently found in the stump search.
+    // The pruning is exact, so the model is the same as the one without pruning.
+    protected boolean m_pruneAttributes = false;
+
+    // Whether to keep the weights, the labels and the attribute columns of the training data outside the heap (see
+    // OffHeapLabelWeights), so that the garbage collector does not trace them. The model is the same. They are
+    // released by "done". In the sparse class mode, the dropped weights are kept as zeros.
+    protected boolean m_offHeap = false;
+
     @Override
     public void initializeClassifier(Instances rawdata) throws Exception {
+        // The time budget includes the sorting of the data.
+        long startNanos = System.nanoTime();
+
         // Determine whether the classifier can handle the data
         getCapabilities().testWithFail(rawdata);
 
+        AttributeStorageType[] storageTypes = getStorageTypes(rawdata.numAttributes() - 1);
+        File diskDirectory = m_diskDirectory.isEmpty() ? null : new File(m_diskDirectory);
+        // The data outside the heap is limited by -XX:MaxDirectMemorySize instead of the heap.
+        if (!m_skipMemoryCheck && !m_offHeap) {
+            MemoryEstimator.Representation representation = checkMemory(rawdata, storageTypes, diskDirectory);
+            if (representation == MemoryEstimator.Representation.COMPACT) {
+                // The storage types are detected, instead of the doubles of the option.
+                storageTypes = null;
+            }
+            else if (representation == MemoryEstimator.Representation.DISK && diskDirectory == null) {
+                diskDirectory = new File(System.getProperty("java.io.tmpdir"));
+            }
+        }
+
         // Make a copy of data and delete instances with a missing class value
         rawdata = new Instances(rawdata);
         rawdata.deleteWithMissingClass();
+        m_header = new Instances(rawdata, 0);
+
+        releaseTrainingData();
+        initializeClassifier(new ExtendedInstances(rawdata, storageTypes, diskDirectory, m_offHeap), startNanos);
+        m_ownsTrainingData = true;
+    }
+
+    // Release the training data if it was built by this classifier, which is not needed by the model. It frees the
+    // memory outside the heap and the files of the columns on disk at once instead of waiting for the garbage collector.
+    // The training can not continue afterwards (such as "next" or "appendTrainingData").
+    public void releaseTrainingData() {
+        if (m_extendedInsts != null && m_ownsTrainingData) {
+            m_extendedInsts.close();
+            m_extendedInsts = null;
+        }
+        m_ownsTrainingData = false;
+    }
 
-        m_extendedInsts = new ExtendedInstances(rawdata);
+    // Check whether the training fits in the heap before any large object is allocated (see MemoryEstimator).
+    // If the columns do not fit in the heap as they are requested, they fall back to the compact storage types, and then
+    // to disk in the temporary directory. The heap is estimated from the numbers of Runtime, so some garbage which is
+    // not collected yet may be counted as used.
+    // Returns the representation of the columns, or DISK if they are already requested on disk.
+    protected MemoryEstimator.Representation checkMemory(Instances rawdata, AttributeStorageType[] storageTypes,
+                                                         File diskDirectory) throws Exception {
+        MemoryEstimator.Representation preferred;
+        if (diskDirectory != null) {
+            preferred = MemoryEstimator.Representation.DISK;
+        }
+        else if (m_attrStorage.equalsIgnoreCase(AttributeStorageType.DOUBLE.name())) {
+            preferred = MemoryEstimator.Representation.DENSE;
+            // The compact fallback detects the storage types, which the doubles of the option would hide.
+            storageTypes = null;
+        }
+        else {
+            preferred = MemoryEstimator.Representation.COMPACT;
+        }
+        MemoryEstimator estimator = MemoryEstimator.forData(rawdata, m_I, m_M, storageTypes);
+
+        long availableBytes = MemoryEstimator.availableHeap();
+        MemoryEstimator.Representation representation = estimator.choose(preferred, availableBytes, true);
+
+        if (representation == null) {
+            throw new Exception("Not enough memory to train AdaBoostMH (use -Xmx to increase the heap, or "
+                    + "-no-memory-check to train anyway).\n" + estimator.report(availableBytes, true));
+        }
+        if (representation == MemoryEstimator.Representation.COMPACT && preferred != representation) {
+            System.err.println("The attribute columns do not fit in the heap as doubles, so they are kept in "
+                    + "their compact storage types.\n" + estimator.report(availableBytes, true));
+        }
+        else if (representation != preferred) {
+            System.err.println("The attribute columns do not fit in the heap, so they are kept on disk in "
+                    + System.getProperty("java.io.tmpdir") + ".\n" + estimator.report(availableBytes, true));
+        }
+        return representation;
+    }
+
+    // Initialize the classifier with training data which has already been extended and sorted,
+    // such as a view of one fold in cross validation.
+    public void initializeClassifier(ExtendedInstances trainingInsts) throws Exception {
+        initializeClassifier(trainingInsts, System.nanoTime());
+    }
+
+    private void initializeClassifier(ExtendedInstances trainingInsts, long startNanos) throws Exception {
+        m_budgetStartNanos = startNanos;
+        m_nanosPerStump = 0;
+        m_numShrunkIterations = 0;
+        m_budgetExhausted = false;
+
+        m_extendedInsts = trainingInsts;
+        m_ownsTrainingData = false;
+        m_extendedInsts.setSparseClasses(m_sparseClassTolerance > 0);
+        if (m_pruneAttributes && m_sparseClassTolerance > 0) {
+            // The bounds keep the weights of all the classes, which is what the sparse class mode avoids.
+            System.err.println("Attribute pruning is not used in the sparse class mode.");
+        }
+        else if (m_pruneAttributes) {
+            m_extendedInsts.enableEdgeBounds();
+        }
+        if (m_adaptivePatience > 0) {
+            if (!(m_adaptiveRatio > 0 && m_adaptiveRatio <= 1)) {
+                throw new Exception("The adaptive pruning ratio must be in (0, 1]: " + m_adaptiveRatio);
+            }
+            m_extendedInsts.enableAttributeActivity(m_adaptivePatience, m_adaptiveRatio, m_adaptiveRecheck);
+        }
         m_baseLearnerContainer = new ArrayList<>();
+        m_numIterationsPerformed = 0;
+        m_earlyExitScorer = null;
+        m_sparseVoteScorer = null;
+    }
+
+    // Get the storage types of all the attributes according to the option "m_attrStorage".
+    // Returns null when the storage types are detected automatically.
+    protected AttributeStorageType[] getStorageTypes(int numAttrs) throws Exception {
+        if (m_attrStorage == null || m_attrStorage.equalsIgnoreCase("AUTO")) {
+            return null;
+        }
+
+        AttributeStorageType storageType;
+        try {
+            storageType = AttributeStorageType.valueOf(m_attrStorage.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new Exception("Unknown attribute storage type: " + m_attrStorage);
+        }
+
+        AttributeStorageType[] storageTypes = new AttributeStorageType[numAttrs];
+        Arrays.fill(storageTypes, storageType);
+        return storageTypes;
     }
 
     // Iterate once, we get one base learner.
@@ -79,20 +275,60 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
             // No attribute exists.
             return false;
         } else {
-            System.out.println("<!-- ###############################" + " Iteration " + m_numIterationsPerformed
-                    + " begins ############################### -->");
+            if (m_printProgress) {
+                System.out.println("<!-- ###############################" + " Iteration " + m_numIterationsPerformed
+                        + " begins ############################### -->");
+            }
 
             if (m_Debug) {
                 printWeights();
             }
 
+            // The size of the product and the share of the attributes searched by each stump in this iteration,
+            // which are smaller than m_M and 1 only when the time budget is short.
+            int numStumps = m_M;
+            double sampleRate = 1;
+            if (m_timeBudget > 0 && m_numIterationsPerformed > 0) {
+                double remainingNanos = m_timeBudget * 1e9 - (System.nanoTime() - m_budgetStartNanos);
+                if (m_budgetShrink) {
+                    // The number of full stump searches per iteration which finishes all the iterations in time
+                    double affordableStumps = remainingNanos / (m_nanosPerStump * (m_I - m_numIterationsPerformed));
+                    if (affordableStumps < m_M) {
+                        numStumps = Math.max(1, (int)affordableStumps);
+                        sampleRate = Math.max(MIN_SAMPLE_RATE, Math.min(1, affordableStumps));
+                        m_numShrunkIterations++;
+                    }
+                }
+                if (m_nanosPerStump * numStumps * sampleRate > remainingNanos) {
+                    m_budgetExhausted = true;
+                    if (m_printProgress) {
+                        System.out.println("Time budget: the next iteration would take about "
+                                + String.format("%.3f", m_nanosPerStump * numStumps * sampleRate / 1e9) + " s, "
+                                + String.format("%.3f", Math.max(0, remainingNanos) / 1e9) + " s left");
+                    }
+                    return false;
+                }
+                if (m_printProgress && (numStumps < m_M || sampleRate < 1)) {
+                    System.out.println("Time budget: product of " + numStumps + " stumps, "
+                            + String.format("%.0f", sampleRate * 100) + "% of the attributes");
+                }
+            }
+            long iterationStart = System.nanoTime();
+
+            AttributeActivity activity = m_extendedInsts.getAttributeActivity();
+            if (activity != null) {
+                activity.startIteration(m_numIterationsPerformed);
+            }
+            m_extendedInsts.setAttributeSample(sampleRate < 1 ? sampleAttributes(sampleRate) : null);
+
             // Create a local variable as the new base learner.
             BaseLearner baseLearner = new ProductLearner();
-            ((ProductLearner)baseLearner).setParameters ("DecisionStump", m_M);
+            ((ProductLearner)baseLearner).setParameters ("DecisionStump", numStumps);
             /*BaseLearner baseLearner = new SingleStumpLearner();*/
 
             // Different base learner uses the same training data "m_extendedInsts".
             baseLearner.buildClassifier(m_extendedInsts);
+            m_extendedInsts.setAttributeSample(null);
 
             // Update all the weights w_i_l of all the instances for next iteration.
             updateWeights(baseLearner);
@@ -100,15 +336,189 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
             // Append current base learner to the end of base learner container.
             m_baseLearnerContainer.add(baseLearner);
 
+            // Smooth the time of a stump search over the past iterations.
+            double nanosPerStump = (System.nanoTime() - iterationStart) / (numStumps * sampleRate);
+            m_nanosPerStump = (m_numIterationsPerformed == 0) ? nanosPerStump
+                    : 0.7 * m_nanosPerStump + 0.3 * nanosPerStump;
+
+            if (activity != null && m_printProgress) {
+                System.out.println("Active attributes: " + activity.getNumActive() + " of "
+                        + m_extendedInsts.numAttributes());
+            }
+
             m_numIterationsPerformed++;
             return true;
         }
     }
 
+    // Draw the attributes searched in an iteration with a short time budget: the given share of all the attributes,
+    // at least one, which is the same for the same iteration.
+    protected boolean[] sampleAttributes(double sampleRate) {
+        int numAttrs = m_extendedInsts.numAttributes();
+        int numSampled = Math.max(1, (int)Math.round(sampleRate * numAttrs));
+
+        int[] attrs = new int[numAttrs];
+        for (int j = 0; j < numAttrs; j++) {
+            attrs[j] = j;
+        }
+        Random random = new Random(m_numIterationsPerformed);
+        boolean[] sample = new boolean[numAttrs];
+        for (int s = 0; s < numSampled; s++) {
+            int pick = s + random.nextInt(numAttrs - s);
+            int attr = attrs[pick];
+            attrs[pick] = attrs[s];
+            attrs[s] = attr;
+            sample[attr] = true;
+        }
+        return sample;
+    }
+
+    // Append a batch of new training instances to the data, merging them into the sorted attributes instead of
+    // sorting all the data again.
+    // If restart is true, all the weights are reset and the base learners are discarded, so that the classifier is
+    // retrained on the enlarged data from scratch by invoking "next". Otherwise, the existing weights are renormalized
+    // and boosting continues on the enlarged data (increase "I" to run more iterations).
+    public void appendTrainingData(Instances batch, boolean restart) throws Exception {
+        if (m_extendedInsts == null) {
+            throw new Exception("The classifier has not been initialized");
+        }
+
+        getCapabilities().testWithFail(batch);
+        batch = new Instances(batch);
+        batch.deleteWithMissingClass();
+
+        m_extendedInsts.append(batch);
+
+        if (restart) {
+            m_extendedInsts.resetWeights();
+            m_baseLearnerContainer = new ArrayList<>();
+            m_numIterationsPerformed = 0;
+            // The scorers were built over the discarded base learners.
+            m_earlyExitScorer = null;
+            m_sparseVoteScorer = null;
+        }
+    }
+
+    // Train on the next chunk of a stream of training data (see StreamingTrainer). The chunk replaces the data of the
+    // previous chunk, so the memory is bounded by the size of a chunk. It is sorted on its own, its weights are the ones
+    // the current model would have given it (see "replayMargins"), then "numIterations" more iterations are performed,
+    // so "I" becomes the total number of iterations so far.
+    public void trainOnChunk(Instances chunk, int numIterations) throws Exception {
+        getCapabilities().testWithFail(chunk);
+        if (m_header != null && !m_header.equalHeaders(chunk)) {
+            throw new Exception("The chunk does not match the first one: " + m_header.equalHeadersMsg(chunk));
+        }
+
+        chunk = new Instances(chunk);
+        chunk.deleteWithMissingClass();
+        if (chunk.numInstances() == 0) {
+            return;
+        }
+
+        // The data of the previous chunk is released before the next one is built.
+        releaseTrainingData();
+        ExtendedInstances chunkInsts = new ExtendedInstances(chunk, getStorageTypes(chunk.numAttributes() - 1), null,
+                m_offHeap);
+        if (m_baseLearnerContainer == null || m_header == null) {
+            m_header = new Instances(chunk, 0);
+            initializeClassifier(chunkInsts);
+        }
+        else {
+            // Keep the model while the training data is replaced.
+            ArrayList<BaseLearner> baseLearners = m_baseLearnerContainer;
+            int numIterationsPerformed = m_numIterationsPerformed;
+            initializeClassifier(chunkInsts);
+            m_baseLearnerContainer = baseLearners;
+            m_numIterationsPerformed = numIterationsPerformed;
+            replayMargins();
+        }
+        m_ownsTrainingData = true;
+
+        m_I = m_numIterationsPerformed + numIterations;
+        while (next()) {
+            // The base learners are not printed for each chunk.
+        }
+    }
+
+    // Initialize the weights of the training data with the margins of the current model.
+    // After T iterations, "updateWeights" has given w_{i,l} = w^{(0)}_{i,l}e^{-y_{i,l}f_l(x_i)}/\prod_{t}Z^{(t)},
+    // so the initial weights are multiplied by e^{-y_{i,l}f_l(x_i)} and normalized to sum to 1. So that none of them
+    // overflows, the largest exponent of each row is subtracted in a first pass, and the largest of all in a second
+    // one. Only the maximum of each row is kept between the passes, not the n*K exponents.
+    protected void replayMargins() throws Exception {
+        int numInstances = m_extendedInsts.numInstances();
+        int numClasses = m_extendedInsts.numClasses();
+
+        // w_{i,l} e^{-y_{i,l}f_l(x_i) - m_i}, where m_i is the largest exponent of the i-th row
+        double[] rowMaxExponents = new double[numInstances];
+        double maxExponent = Double.NEGATIVE_INFINITY;
+        double[] attrValues = new double[m_extendedInsts.numAttributes()];
+        for (int i = 0; i < numInstances; i++) {
+            double[] scores = scores(m_extendedInsts.getAttrValues(i, attrValues), numClasses);
+            double rowMaxExponent = Double.NEGATIVE_INFINITY;
+            for (int l = 0; l < numClasses; l++) {
+                rowMaxExponent = Math.max(rowMaxExponent, -m_extendedInsts.getLabel(i, l) * scores[l]);
+            }
+            for (int l = 0; l < numClasses; l++) {
+                double exponent = -m_extendedInsts.getLabel(i, l) * scores[l];
+                m_extendedInsts.setWeight(i, l, m_extendedInsts.getWeight(i, l) * Math.exp(exponent - rowMaxExponent));
+            }
+            rowMaxExponents[i] = rowMaxExponent;
+            maxExponent = Math.max(maxExponent, rowMaxExponent);
+        }
+
+        double Z = 0;
+        for (int i = 0; i < numInstances; i++) {
+            double rowFactor = Math.exp(rowMaxExponents[i] - maxExponent);
+            for (int l = 0; l < numClasses; l++) {
+                double weight = m_extendedInsts.getWeight(i, l) * rowFactor;
+                m_extendedInsts.setWeight(i, l, weight);
+                Z += weight;
+            }
+        }
+        for (int i = 0; i < numInstances; i++) {
+            for (int l = 0; l < numClasses; l++) {
+                m_extendedInsts.setWeight(i, l, m_extendedInsts.getWeight(i, l) / Z);
+            }
+        }
+
+        if (m_sparseClassTolerance > 0) {
+            m_extendedInsts.dropSmallWeights(m_sparseClassTolerance);
+        }
+    }
+
     // Executed only after all the iterations are done.
+    // The training data built by this classifier is released here if it is outside the heap (in direct buffers or on
+    // disk), whichever way the iterations were run, since the garbage collector would not release it soon.
     @Override
     public void done() throws Exception {
-        // dummy
+        if (m_timeBudget > 0) {
+            System.out.println("Time budget: " + m_numIterationsPerformed + " of " + m_I + " iterations in "
+                    + String.format("%.3f", (System.nanoTime() - m_budgetStartNanos) / 1e9) + " of " + m_timeBudget
+                    + " s, " + m_numShrunkIterations + " with less work"
+                    + (m_budgetExhausted ? ", stopped by the budget" : ""));
+        }
+
+        AttributeEdgeBounds edgeBounds = m_extendedInsts.getEdgeBounds();
+        if (edgeBounds != null) {
+            long numSearched = edgeBounds.getNumScanned() + edgeBounds.getNumPruned();
+            System.out.println("Attribute pruning: " + edgeBounds.getNumPruned() + " of " + numSearched
+                    + " attribute scans skipped");
+        }
+
+        AttributeActivity activity = m_extendedInsts.getAttributeActivity();
+        if (activity != null) {
+            long numSearched = activity.getNumScanned() + activity.getNumSkipped();
+            System.out.println("Adaptive attribute pruning: " + activity.getNumSkipped() + " of " + numSearched
+                    + " attribute scans skipped, " + String.format("%.1f", activity.getAverageActive()) + " of "
+                    + m_extendedInsts.numAttributes() + " attributes active on average, "
+                    + activity.getNumActive() + " active at the end, about "
+                    + String.format("%.2f", activity.getSavedSeconds()) + " s saved");
+        }
+
+        if (m_extendedInsts.isOffHeap() || m_extendedInsts.isOnDisk()) {
+            releaseTrainingData();
+        }
     }
 
     /**
@@ -134,29 +544,60 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
         this.done();
     }
 
+    // Build the classifier with training data which has already been extended and sorted, such as a view of one fold.
+    // The data belongs to the caller, which closes it after training (see ExtendedInstances.close).
+    public void buildClassifier(ExtendedInstances trainingInsts) throws Exception {
+        this.initializeClassifier(trainingInsts);
+
+        while(this.next()) {
+            BaseLearner baseLearner = m_baseLearnerContainer.get(m_numIterationsPerformed - 1);
+            baseLearner.printLearnerInfo();
+        }
+
+        this.done();
+    }
+
+    // Build the classifier from an ARFF file which may be larger than the memory, whose class is the last attribute.
+    // The file is loaded on disk in diskDirectory by "ExtendedInstances.loadOnDisk", with the weights and labels
+    // outside the heap if "m_offHeap" is set. The data belongs to this classifier, so it is released by "done".
+    public void buildClassifier(ArffLoader loader, File diskDirectory) throws Exception {
+        long startNanos = System.nanoTime();
+
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(structure.numAttributes() - 1);
+        m_header = new Instances(structure, 0);
+
+        releaseTrainingData();
+        initializeClassifier(ExtendedInstances.loadOnDisk(loader, diskDirectory,
+                getStorageTypes(structure.numAttributes() - 1), m_offHeap), startNanos);
+        m_ownsTrainingData = true;
+
+        while(this.next()) {
+            BaseLearner baseLearner = m_baseLearnerContainer.get(m_numIterationsPerformed - 1);
+            baseLearner.printLearnerInfo();
+        }
+
+        this.done();
+    }
+
     // Do the classification of the given instance. The process handles the instances one by one instead of a bunch.
     public double[] distributionForInstance(Instance instance) throws Exception {
+        return distributionForInstance(instance.toDoubleArray(), instance.numClasses());
+    }
+
+    // Do the classification of the given instance represented by a double array, such as a row parsed by
+    // StreamingScorer without building an Instance object.
+    public double[] distributionForInstance(double[] testInst, int numClasses) throws Exception {
         if (this.m_numIterationsPerformed == 0) {
             throw new Exception("No model built");
         }
         else {
             // We don't need to extend the instance to an ExtendedInstances class object, because we don't know
             // and don't need to know its labels, weights, what we need to do is to classify the given instance.
-            double[] classification = new double[instance.numClasses()];
-
-            // Iterate all the T base classifiers.
-            for(int t = 0; t < m_numIterationsPerformed; t++) {
-                // Get current base learner to get the classification.
-                BaseLearner baseLearner = m_baseLearnerContainer.get(t);
-
-                double alpha = baseLearner.getAlpha();
-                for (int k = 0; k < instance.numClasses(); k++) {
-                    classification[k] += alpha * baseLearner.doClassification(instance.toDoubleArray(), k);
-                }
-            }
+            double[] classification = scores(testInst, numClasses);
 
             // For some reason, before the normalization, we need to exponent function to optimize our result.
-            for(int l = 0; l < instance.numClasses(); l++) {
+            for(int l = 0; l < numClasses; l++) {
                 classification[l] = Math.exp(classification[l]);
             }
 
@@ -168,6 +609,73 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
         }
     }
 
+    // Compute the scores f_l(x) = \sum_{t=1}^{T}\alpha^{(t)}h_l^{(t)}(x) of the given instance represented by a double
+    // array, before the exponent and the normalization of "distributionForInstance".
+    protected double[] scores(double[] testInst, int numClasses) throws Exception {
+        if (m_sparseClassTolerance > 0) {
+            // The class-wise loop only visits the votes against the majority of each base learner.
+            return getSparseVoteScorer(numClasses).scores(testInst);
+        }
+
+        double[] classification = new double[numClasses];
+
+        // Iterate all the T base classifiers.
+        for(int t = 0; t < m_numIterationsPerformed; t++) {
+            // Get current base learner to get the classification.
+            BaseLearner baseLearner = m_baseLearnerContainer.get(t);
+
+            double alpha = baseLearner.getAlpha();
+            for (int k = 0; k < numClasses; k++) {
+                classification[k] += alpha * baseLearner.doClassification(testInst, k);
+            }
+        }
+        return classification;
+    }
+
+    // Classify the given instance. With the option "EarlyExit", the terms are evaluated by descending |alpha| until the
+    // leading class can not be beaten by the remaining terms. The prediction is the same as the one from
+    // "distributionForInstance", which is used when the scores can overflow or the top two classes almost tie.
+    @Override
+    public double classifyInstance(Instance instance) throws Exception {
+        if (!m_earlyExit || this.m_numIterationsPerformed == 0) {
+            return super.classifyInstance(instance);
+        }
+
+        EarlyExitScorer scorer = getEarlyExitScorer();
+        if (!scorer.isExact()) {
+            return super.classifyInstance(instance);
+        }
+
+        int predicted = scorer.classify(instance.toDoubleArray(), instance.numClasses());
+        if (predicted < 0) {
+            scorer.addEvaluatedTerms(scorer.numTerms());
+            return super.classifyInstance(instance);
+        }
+        return predicted;
+    }
+
+    // get the early exit scorer of the current model, which is rebuilt when more iterations are performed.
+    protected synchronized EarlyExitScorer getEarlyExitScorer() {
+        if (m_earlyExitScorer == null || m_earlyExitScorer.numTerms() != m_numIterationsPerformed) {
+            m_earlyExitScorer = new EarlyExitScorer(m_baseLearnerContainer, m_numIterationsPerformed);
+        }
+        return m_earlyExitScorer;
+    }
+
+    // get the compact scorer of the current model, which is rebuilt when more iterations are performed.
+    protected synchronized SparseVoteScorer getSparseVoteScorer(int numClasses) {
+        if (m_sparseVoteScorer == null || m_sparseVoteScorer.numTerms() != m_numIterationsPerformed) {
+            m_sparseVoteScorer = new SparseVoteScorer(m_baseLearnerContainer, m_numIterationsPerformed, numClasses);
+        }
+        return m_sparseVoteScorer;
+    }
+
+    // get the average number of terms evaluated by "classifyInstance" with early exit, or 0 if it is not used.
+    public double getAverageEvaluatedTerms() {
+        EarlyExitScorer scorer = m_earlyExitScorer;
+        return scorer == null ? 0 : scorer.getAverageEvaluatedTerms();
+    }
+
     // Update all the weights w_i_l of all the instances for next iteration.
     public void updateWeights (BaseLearner baseLearner) throws Exception {
         int numInstances = m_extendedInsts.numInstances();
@@ -178,53 +686,73 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
         // The normalization factor
         double Z = 0;
 
-        // hy is a temporary variable for h(x)*y. Helps saving time during re-weighting.
-        // The dimension of hy should be numInstances*numClasses (n*k), that is the size of weight(W) matrix.
-        ArrayList<double[]> hy = new ArrayList<>();
-        for (int i = 0; i < numInstances; ++i) {
-            // Create n vectors (each for one instance) for hy, in which has a double array with the length of k(numClasses).
-            hy.add(new double[numClasses]);
-        }
+        // h_l(x_i) = v_l * \varphi(x_i) is read from the bitset of \varphi(x_i) computed when the base learner is built,
+        // so hy = h(x)*y is computed again in the re-weighting instead of being kept for all the instances.
+        long[] phiBits = baseLearner.getPhiBits();
+        double[] v = baseLearner.getPhiVotes();
 
         // Start to recompute weights and compute the normalization factor Z
 
         // For each instance (totally n instances)
         for (int i = 0; i < numInstances; ++i) {
-            // Get all the labels and weights of the i-th instance.
-            int[] labels = m_extendedInsts.getLabels(i);
-            double[] weight = m_extendedInsts.getWeights(i);
-
-            // For each label/weight (totally K)
-            for (int l = 0; l < numClasses; l++) {
+            // For each label/weight of the i-th instance (totally K, or the kept classes in the sparse class mode)
+            int numEntries = m_extendedInsts.numEntries(i);
+            for (int l = 0; l < numEntries; l++) {
                 // hy_i_l = h_l(x_i) * y_i_l, that is: hy_{i,l} = h_l\left ( x_{i} \right )y_{i,l} = v_l\varphi(x_i)y_{i,l}
                 // The following function returns h_l(x_i) = v_l * \varphi(x_i)
-                hy.get(i)[l] = baseLearner.doClassification(m_extendedInsts, i, l) * labels[l];
+                double hy = BaseLearner.classification(phiBits, v, i, m_extendedInsts.getEntryClass(i, l))
+                        * m_extendedInsts.getLabel(i, l);
 
                 // Formular on the right side is:   w_i_l * exp(-alpha * h_l(x_i) * y_i_l)
                 // In latex, it is:  w_{i,l}e^{\alpha * h_l\left ( x_{i} \right ) * y_{i,l}}
                 // So, Z equals to:  Z = \sum_{i=1}^{n}\sum_{l=1}^{k}w_{i,l}e^{-\alpha * h_l\left ( x_{i} \right ) * y_{i,l}}
-                Z += weight[l] * Math.exp(-alpha * hy.get(i)[l]);
+                Z += m_extendedInsts.getWeight(i, l) * Math.exp(-alpha * hy);
                 // w_i_l  * exp( -alpha * h_l(x_i) * y_i )
             }
         }
 
-        System.out.println("Update Weights: Z = " + Z);
+        if (m_printProgress) {
+            System.out.println("Update Weights: Z = " + Z);
+        }
 
         // Now do the actual re-weight
         // For each instance
         for (int i = 0; i < numInstances; ++i) {
-            // Get all the weights of the i-th instance.
-            double[] weight = m_extendedInsts.getWeights(i);
+            int numEntries = m_extendedInsts.numEntries(i);
 
-            // For each weight (totally K)
+            // For each weight (totally K, or the kept classes in the sparse class mode)
             // Calculate the new weight w'_i_l for next iteration.
             // w_{i,l}^{'}=w_{i,l}*\frac{e^{-\alpha*hy_{i,l}}}{Z}=w_{i,l}*\frac{e^{-\alpha*h_l\left ( x_{i} \right )*y_{i,l}}}{Z}=w_{i,l}*\frac{e^{-\alpha*v_l*\varphi(x_i)*y_{i,l}}}{Z}
-            for (int l = 0; l < numClasses; l++) {
-                weight[l] = weight[l] * Math.exp(-alpha * hy.get(i)[l]) / Z;
+            for (int l = 0; l < numEntries; l++) {
+                double hy = BaseLearner.classification(phiBits, v, i, m_extendedInsts.getEntryClass(i, l))
+                        * m_extendedInsts.getLabel(i, l);
+                m_extendedInsts.setWeight(i, l, m_extendedInsts.getWeight(i, l) * Math.exp(-alpha * hy) / Z);
+            }
+        }
+
+        // The bitset is not needed by the model.
+        baseLearner.releasePhiBits();
+
+        if (m_sparseClassTolerance > 0) {
+            long numKept = m_extendedInsts.dropSmallWeights(m_sparseClassTolerance);
+            if (m_printProgress) {
+                System.out.println("Sparse classes: " + numKept + " of " + (long)numInstances * numClasses
+                        + " weights kept");
             }
         }
     }
 
+    // get the t-th base learner
+    public BaseLearner getBaseLearner(int t) { return m_baseLearnerContainer.get(t); }
+
+    // get the number of iterations have already executed
+    public int getNumIterationsPerformed() { return m_numIterationsPerformed; }
+
+    // get the header of the training data, or null if it is unknown
+    public Instances getHeader() { return m_header; }
+
+    public void setPrintProgress(boolean printProgress) { m_printProgress = printProgress; }
+
     private void printLabels () {
         File labelsFile = new File("labels.txt");
         Writer outL = null;
@@ -233,9 +761,8 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
             outL.write("---------------- Labels after initialization of the raw data ----------------\r\n");
 
             for (int i = 0; i < m_extendedInsts.numInstances(); i++) {
-                int[] labels = m_extendedInsts.getLabels(i);
-                for (int k = 0; k < m_extendedInsts.numClasses(); k++) {
-                    outL.write((int)labels[k] + "        ");
+                for (int k = 0; k < m_extendedInsts.numEntries(i); k++) {
+                    outL.write(m_extendedInsts.getLabel(i, k) + "        ");
                 }
                 outL.write("\r\n");
             }
@@ -254,10 +781,9 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
             outW.write("---------------- Iteration " + m_numIterationsPerformed + " ----------------\r\n");
 
             for (int i = 0; i < m_extendedInsts.numInstances(); i++) {
-                double[] weights = m_extendedInsts.getWeights(i);
-                for (int k = 0; k < m_extendedInsts.numClasses(); k++) {
+                for (int k = 0; k < m_extendedInsts.numEntries(i); k++) {
                     DecimalFormat df = new DecimalFormat("#0.0000000000");
-                    String weight = df.format(weights[k]);
+                    String weight = df.format(m_extendedInsts.getWeight(i, k));
                     outW.write(weight + "        ");
                 }
                 outW.write("\r\n");
@@ -313,11 +839,184 @@ public class AdaBoostMH extends AbstractClassifier implements IterativeClassifie
         this.m_M = M;
     }
 
+    @OptionMetadata(
+            displayName = "AttrStorage",
+            description = "The storage type of the attribute columns: AUTO, BYTE, SHORT, FLOAT or DOUBLE",
+            displayOrder = 3,
+            commandLineParamName = "S",
+            commandLineParamSynopsis = "-S")
+    public String getAttrStorage() {
+        return m_attrStorage;
+    }
+    public void setAttrStorage(String attrStorage) {
+        this.m_attrStorage = attrStorage;
+    }
+
+    @OptionMetadata(
+            displayName = "PruneAttributes",
+            description = "Skip the attributes which can not beat the best stump found so far (exact)",
+            displayOrder = 4,
+            commandLineParamName = "P",
+            commandLineParamSynopsis = "-P",
+            commandLineParamIsFlag = true)
+    public boolean getPruneAttributes() {
+        return m_pruneAttributes;
+    }
+    public void setPruneAttributes(boolean pruneAttributes) {
+        this.m_pruneAttributes = pruneAttributes;
+    }
+
+    @OptionMetadata(
+            displayName = "DiskDirectory",
+            description = "Keep the attribute columns in memory-mapped files in this directory (empty: in memory)",
+            displayOrder = 5,
+            commandLineParamName = "D",
+            commandLineParamSynopsis = "-D")
+    public String getDiskDirectory() {
+        return m_diskDirectory;
+    }
+    public void setDiskDirectory(String diskDirectory) {
+        this.m_diskDirectory = diskDirectory;
+    }
+
+    @OptionMetadata(
+            displayName = "EarlyExit",
+            description = "Stop scoring in classifyInstance once the predicted class can not change (exact)",
+            displayOrder = 6,
+            commandLineParamName = "E",
+            commandLineParamSynopsis = "-E",
+            commandLineParamIsFlag = true)
+    public boolean getEarlyExit() {
+        return m_earlyExit;
+    }
+    public void setEarlyExit(boolean earlyExit) {
+        this.m_earlyExit = earlyExit;
+    }
+
+    @OptionMetadata(
+            displayName = "SkipMemoryCheck",
+            description = "Do not estimate the heap before training, nor move the columns to disk when it is short",
+            displayOrder = 7,
+            commandLineParamName = "no-memory-check",
+            commandLineParamSynopsis = "-no-memory-check",
+            commandLineParamIsFlag = true)
+    public boolean getSkipMemoryCheck() {
+        return m_skipMemoryCheck;
+    }
+    public void setSkipMemoryCheck(boolean skipMemoryCheck) {
+        this.m_skipMemoryCheck = skipMemoryCheck;
+    }
+
+    @OptionMetadata(
+            displayName = "AdaptivePruning",
+            description = "Skip the attributes far below the selected one in this many stump searches "
+                    + "(0: disabled, not exact)",
+            displayOrder = 9,
+            commandLineParamName = "adaptive",
+            commandLineParamSynopsis = "-adaptive <searches>")
+    public int getAdaptivePatience() {
+        return m_adaptivePatience;
+    }
+    public void setAdaptivePatience(int adaptivePatience) {
+        this.m_adaptivePatience = adaptivePatience;
+    }
+
+    @OptionMetadata(
+            displayName = "AdaptivePruningRatio",
+            description = "An attribute is far below the selected one if its best edge is below this ratio of it "
+                    + "(in (0, 1])",
+            displayOrder = 10,
+            commandLineParamName = "adaptive-ratio",
+            commandLineParamSynopsis = "-adaptive-ratio <ratio>")
+    public double getAdaptiveRatio() {
+        return m_adaptiveRatio;
+    }
+    public void setAdaptiveRatio(double adaptiveRatio) {
+        this.m_adaptiveRatio = adaptiveRatio;
+    }
+
+    @OptionMetadata(
+            displayName = "AdaptivePruningRecheck",
+            description = "Scan all the attributes again every this many iterations",
+            displayOrder = 11,
+            commandLineParamName = "adaptive-recheck",
+            commandLineParamSynopsis = "-adaptive-recheck <iterations>")
+    public int getAdaptiveRecheck() {
+        return m_adaptiveRecheck;
+    }
+    public void setAdaptiveRecheck(int adaptiveRecheck) {
+        this.m_adaptiveRecheck = adaptiveRecheck;
+    }
+
+    @OptionMetadata(
+            displayName = "TimeBudget",
+            description = "Stop the iterations before the training exceeds this many seconds (0: no budget)",
+            displayOrder = 12,
+            commandLineParamName = "budget",
+            commandLineParamSynopsis = "-budget <seconds>")
+    public double getTimeBudget() {
+        return m_timeBudget;
+    }
+    public void setTimeBudget(double timeBudget) {
+        this.m_timeBudget = timeBudget;
+    }
+
+    @OptionMetadata(
+            displayName = "TimeBudgetShrink",
+            description = "Use smaller products, then fewer attributes, when all the iterations can not finish in "
+                    + "the time budget (not exact)",
+            displayOrder = 13,
+            commandLineParamName = "budget-shrink",
+            commandLineParamSynopsis = "-budget-shrink",
+            commandLineParamIsFlag = true)
+    public boolean getBudgetShrink() {
+        return m_budgetShrink;
+    }
+    public void setBudgetShrink(boolean budgetShrink) {
+        this.m_budgetShrink = budgetShrink;
+    }
+
+    @OptionMetadata(
+            displayName = "OffHeap",
+            description = "Keep the weights, the labels and the attribute columns of the training data outside the "
+                    + "heap (limited by -XX:MaxDirectMemorySize)",
+            displayOrder = 14,
+            commandLineParamName = "off-heap",
+            commandLineParamSynopsis = "-off-heap",
+            commandLineParamIsFlag = true)
+    public boolean getOffHeap() {
+        return m_offHeap;
+    }
+    public void setOffHeap(boolean offHeap) {
+        this.m_offHeap = offHeap;
+    }
+
+    @OptionMetadata(
+            displayName = "SparseClassTolerance",
+            description = "Sparse class mode for many classes: drop the weights below this times their initial weight "
+                    + "(0: all the classes are kept)",
+            displayOrder = 8,
+            commandLineParamName = "sparse-classes",
+            commandLineParamSynopsis = "-sparse-classes <tolerance>")
+    public double getSparseClassTolerance() {
+        return m_sparseClassTolerance;
+    }
+    public void setSparseClassTolerance(double sparseClassTolerance) {
+        this.m_sparseClassTolerance = sparseClassTolerance;
+    }
+
     /**
      * Returns a textual description of the classifier.
      */
     public String toString() {
-        return "AdaBoostMH with " + m_I + " iterations and " + m_M + " products";
+        String description = "AdaBoostMH with " + m_I + " iterations and " + m_M + " products";
+
+        EarlyExitScorer scorer = m_earlyExitScorer;
+        if (scorer != null && scorer.getNumInstances() > 0) {
+            description += "\nEarly exit: " + String.format("%.2f", scorer.getAverageEvaluatedTerms()) + " of "
+                    + scorer.numTerms() + " terms evaluated on average for " + scorer.getNumInstances() + " instances";
+        }
+        return description;
     }
 
     public static void main(String[] argv) {
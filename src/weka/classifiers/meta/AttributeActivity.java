@@ -0,0 +1,136 @@
+package weka.classifiers.meta;
+
+import java.util.Arrays;
+
+// This is a Class to deactivate the attributes which are never close to being selected, used to scan fewer attributes
+// in SingleStumpLearner over a long run (such as the border pixels of MNIST, which are never selected).
+// After each search of the best stump, the gain of each scanned attribute, which is its best half edge minus the half
+// edge of the constant stump that every attribute reaches, is compared with the gain of the selected attribute.
+// An attribute whose gain stays below "ratio" times the selected one in "patience" consecutive searches is
+// deactivated, so it is skipped by the next searches. All the attributes are activated again every "recheck period"
+// boosting iterations, so an attribute which becomes useful when the weights change is found.
+// The ratio is in (0, 1], so the selected attribute itself is never weak. When all the attributes of a search are
+// inactive, they are scanned anyway (see "hasActive"), so that a stump is always selected from a scanned attribute.
+// Unlike AttributeEdgeBounds, this pruning is not exact: the model may differ from the one of the exhaustive search.
+public class AttributeActivity {
+    // Number of attributes
+    protected int m_numAttrs = 0;
+
+    // Number of consecutive searches before a weak attribute is deactivated
+    protected int m_patience;
+    // An attribute is weak in a search if its gain is below this ratio times the gain of the selected one.
+    protected double m_ratio;
+    // Number of boosting iterations between two reactivations of all the attributes
+    protected int m_recheckPeriod;
+
+    // Whether each attribute is scanned, and its number of consecutive weak searches
+    protected boolean[] m_active;
+    protected int[] m_numWeakSearches;
+    protected int m_numActive;
+
+    // The best half edge of each attribute scanned in the current search, or -1 if it is not scanned.
+    protected double[] m_halfEdges;
+    // The half edge of the constant stump in the current search
+    protected double m_initHalfEdge;
+
+    // Number of the attributes scanned and skipped, the time of the scans, and the sum of the active counts of all
+    // the searches, used to report the effect of the pruning.
+    protected long m_numScanned = 0;
+    protected long m_numSkipped = 0;
+    protected long m_scanNanos = 0;
+    protected long m_numSearches = 0;
+    protected long m_sumActive = 0;
+
+    public AttributeActivity (int numAttrs, int patience, double ratio, int recheckPeriod) {
+        if (!(ratio > 0 && ratio <= 1)) {
+            throw new IllegalArgumentException("The ratio of the adaptive pruning must be in (0, 1]: " + ratio);
+        }
+        m_numAttrs = numAttrs;
+        m_patience = patience;
+        m_ratio = ratio;
+        m_recheckPeriod = recheckPeriod;
+
+        m_active = new boolean[numAttrs];
+        m_numWeakSearches = new int[numAttrs];
+        m_halfEdges = new double[numAttrs];
+        activateAll();
+    }
+
+    // Invoked at the beginning of each boosting iteration, which activates all the attributes every recheck period.
+    public void startIteration (int iteration) {
+        if (m_recheckPeriod > 0 && iteration > 0 && iteration % m_recheckPeriod == 0) {
+            activateAll();
+        }
+    }
+
+    private void activateAll () {
+        Arrays.fill(m_active, true);
+        Arrays.fill(m_numWeakSearches, 0);
+        m_numActive = m_numAttrs;
+    }
+
+    // Invoked before each search of the best stump, with the half edge of the constant stump.
+    public void startSearch (double initHalfEdge) {
+        m_initHalfEdge = initHalfEdge;
+        Arrays.fill(m_halfEdges, -1);
+        m_numSearches++;
+        m_sumActive += m_numActive;
+    }
+
+    public boolean isActive (int attrIndex) { return m_active[attrIndex]; }
+
+    // Whether at least one of the attributes searched in the given data (see ExtendedInstances.isSampled) is active.
+    public boolean hasActive (ExtendedInstances insts) {
+        for (int j = 0; j < m_numAttrs; j++) {
+            if (m_active[j] && insts.isSampled(j)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void setSkipped (int attrIndex) { m_numSkipped++; }
+
+    // Keep the best half edge of a scanned attribute, and the time of its scan.
+    public void setScanned (int attrIndex, double halfEdge, long nanos) {
+        m_halfEdges[attrIndex] = halfEdge;
+        m_numScanned++;
+        m_scanNanos += nanos;
+    }
+
+    // Invoked after each search with the best half edge of the selected attribute:
+    // count the weak searches of the scanned attributes, and deactivate the ones which have been weak for too long.
+    public void endSearch (double selectedHalfEdge) {
+        double selectedGain = selectedHalfEdge - m_initHalfEdge;
+        for (int j = 0; j < m_numAttrs; j++) {
+            if (m_halfEdges[j] < 0) {
+                continue;
+            }
+            if (m_halfEdges[j] - m_initHalfEdge < m_ratio * selectedGain) {
+                m_numWeakSearches[j]++;
+                if (m_numWeakSearches[j] >= m_patience && m_active[j]) {
+                    m_active[j] = false;
+                    m_numActive--;
+                }
+            } else {
+                m_numWeakSearches[j] = 0;
+            }
+        }
+    }
+
+    public int getNumActive () { return m_numActive; }
+
+    public long getNumScanned () { return m_numScanned; }
+
+    public long getNumSkipped () { return m_numSkipped; }
+
+    // get the average number of active attributes in a search
+    public double getAverageActive () {
+        return m_numSearches == 0 ? m_numAttrs : (double)m_sumActive / m_numSearches;
+    }
+
+    // get the estimated time saved by the skipped scans in seconds, from the average time of a scan
+    public double getSavedSeconds () {
+        return m_numScanned == 0 ? 0 : (double)m_scanNanos / m_numScanned * m_numSkipped / 1e9;
+    }
+}
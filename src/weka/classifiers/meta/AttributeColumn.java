@@ -0,0 +1,241 @@
+package weka.classifiers.meta;
+
+// This is a Class of one attribute column of the training data.
+// It contains the values of this attribute for all the instances (indexed by instance), and the same values sorted
+// ascendingly together with the indices of their instances.
+// The values are kept in the storage type of the column (byte, short, float or double), so that a column of MNIST
+// pixels takes 1/8 of the memory of a double column, and much more of the data stays in the caches during the scans
+// of StumpAlgorithm. All the values are returned as double, so thresholds computed between two stored values
+// are still correct.
+public class AttributeColumn {
+    // Storage type of all the values in this column
+    protected AttributeStorageType m_storageType;
+
+    // Number of instances
+    protected int m_numInstances = 0;
+
+    // Values of this attribute indexed by instance. Only the array of the storage type is used.
+    protected byte[] m_byteValues;
+    protected short[] m_shortValues;
+    protected float[] m_floatValues;
+    protected double[] m_doubleValues;
+
+    // Indices of the instances sorted ascendingly by the values of this attribute.
+    protected int[] m_sortedIndices;
+
+    // Values of this attribute sorted ascendingly. Only the array of the storage type is used.
+    protected byte[] m_sortedByteValues;
+    protected short[] m_sortedShortValues;
+    protected float[] m_sortedFloatValues;
+    protected double[] m_sortedDoubleValues;
+
+    // The end positions (exclusive) of the runs of equal values in the sorted column. The stump search only needs to
+    // evaluate the splits at the ends of the runs, because no threshold can be put between two equal values.
+    // It is null if most values are distinct, in which case every position is the end of a run.
+    protected int[] m_runEnds;
+
+    // Construction function used by the subclasses which keep the values elsewhere.
+    protected AttributeColumn () {
+    }
+
+    // Construction function of a column.
+    // values: the attribute values indexed by instance, which have already been converted to the storage type.
+    // sortedIndices: the indices of all the instances sorted ascendingly by the values (see ColumnSorter).
+    public AttributeColumn (AttributeStorageType storageType, double[] values, int[] sortedIndices) {
+        int numInstances = values.length;
+
+        double[] sortedValues = new double[numInstances];
+        for (int pos = 0; pos < numInstances; pos++) {
+            sortedValues[pos] = values[sortedIndices[pos]];
+        }
+
+        setValues(storageType, values, sortedIndices, sortedValues);
+    }
+
+    // Append a batch of new instances to this column. The indices of the new instances follow the existing ones.
+    // batchValues: the attribute values of the new instances, which have already been converted to the storage type.
+    // sortedBatch: the positions in batchValues of the new instances sorted ascendingly by the values.
+    // The sorted batch is merged into the existing sorted column linearly. When two values are equal, the existing
+    // instance comes first, which is the same order as sorting all the instances again.
+    public void append (AttributeStorageType storageType, double[] batchValues, int[] sortedBatch) {
+        int numBatch = batchValues.length;
+        int numInstances = m_numInstances + numBatch;
+
+        double[] values = new double[numInstances];
+        for (int i = 0; i < m_numInstances; i++) {
+            values[i] = value(i);
+        }
+        System.arraycopy(batchValues, 0, values, m_numInstances, numBatch);
+
+        int[] sortedIndices = new int[numInstances];
+        double[] sortedValues = new double[numInstances];
+        int posOld = 0;
+        int posNew = 0;
+        for (int pos = 0; pos < numInstances; pos++) {
+            if (posNew >= numBatch
+                    || (posOld < m_numInstances
+                        && Double.compare(sortedValue(posOld), batchValues[sortedBatch[posNew]]) <= 0)) {
+                sortedIndices[pos] = m_sortedIndices[posOld];
+                sortedValues[pos] = sortedValue(posOld);
+                posOld++;
+            } else {
+                sortedIndices[pos] = m_numInstances + sortedBatch[posNew];
+                sortedValues[pos] = batchValues[sortedBatch[posNew]];
+                posNew++;
+            }
+        }
+
+        setValues(storageType, values, sortedIndices, sortedValues);
+    }
+
+    // Keep all the values and sorted values in the given storage type.
+    private void setValues (AttributeStorageType storageType, double[] values,
+                            int[] sortedIndices, double[] sortedValues) {
+        this.m_storageType = storageType;
+        this.m_numInstances = values.length;
+        this.m_sortedIndices = sortedIndices;
+
+        m_byteValues = null;
+        m_sortedByteValues = null;
+        m_shortValues = null;
+        m_sortedShortValues = null;
+        m_floatValues = null;
+        m_sortedFloatValues = null;
+        m_doubleValues = null;
+        m_sortedDoubleValues = null;
+
+        switch (m_storageType) {
+            case BYTE:
+                m_byteValues = new byte[m_numInstances];
+                m_sortedByteValues = new byte[m_numInstances];
+                for (int i = 0; i < m_numInstances; i++) {
+                    m_byteValues[i] = (byte)(int)values[i];
+                    m_sortedByteValues[i] = (byte)(int)sortedValues[i];
+                }
+                break;
+            case SHORT:
+                m_shortValues = new short[m_numInstances];
+                m_sortedShortValues = new short[m_numInstances];
+                for (int i = 0; i < m_numInstances; i++) {
+                    m_shortValues[i] = (short)values[i];
+                    m_sortedShortValues[i] = (short)sortedValues[i];
+                }
+                break;
+            case FLOAT:
+                m_floatValues = new float[m_numInstances];
+                m_sortedFloatValues = new float[m_numInstances];
+                for (int i = 0; i < m_numInstances; i++) {
+                    m_floatValues[i] = (float)values[i];
+                    m_sortedFloatValues[i] = (float)sortedValues[i];
+                }
+                break;
+            default:
+                m_doubleValues = values;
+                m_sortedDoubleValues = sortedValues;
+                break;
+        }
+
+        m_runEnds = findRunEnds(sortedValues);
+    }
+
+    // Find the end positions of the runs of equal values in the sorted values.
+    // Returns null if there are more than half as many runs as values, because the runs would not save much.
+    private static int[] findRunEnds (double[] sortedValues) {
+        int numValues = sortedValues.length;
+
+        int numRuns = 0;
+        for (int pos = 0; pos < numValues; pos++) {
+            if (pos == numValues - 1 || sortedValues[pos + 1] != sortedValues[pos]) {
+                numRuns++;
+            }
+        }
+        if (numRuns > numValues / 2) {
+            return null;
+        }
+
+        int[] runEnds = new int[numRuns];
+        int run = 0;
+        for (int pos = 0; pos < numValues; pos++) {
+            if (pos == numValues - 1 || sortedValues[pos + 1] != sortedValues[pos]) {
+                runEnds[run++] = pos + 1;
+            }
+        }
+        return runEnds;
+    }
+
+    // Convert a value to the one actually kept by the given storage type.
+    // Only FLOAT may lose precision, the other types should only get the values they can hold.
+    public static double toStoredValue (AttributeStorageType storageType, double value) {
+        if (storageType == AttributeStorageType.FLOAT) {
+            return (float)value;
+        }
+        return value;
+    }
+
+    // get the value of the index-th instance
+    public double value (int index) {
+        switch (m_storageType) {
+            case BYTE:
+                return m_byteValues[index] & 0xFF;
+            case SHORT:
+                return m_shortValues[index];
+            case FLOAT:
+                return m_floatValues[index];
+            default:
+                return m_doubleValues[index];
+        }
+    }
+
+    // get the index of the instance in the pos-th position of the sorted column
+    public int sortedIndex (int pos) { return m_sortedIndices[pos]; }
+
+    // get the value in the pos-th position of the sorted column
+    public double sortedValue (int pos) {
+        switch (m_storageType) {
+            case BYTE:
+                return m_sortedByteValues[pos] & 0xFF;
+            case SHORT:
+                return m_sortedShortValues[pos];
+            case FLOAT:
+                return m_sortedFloatValues[pos];
+            default:
+                return m_sortedDoubleValues[pos];
+        }
+    }
+
+    // get the end positions (exclusive) of the runs of equal values in the sorted column,
+    // or null if most values are distinct
+    public int[] getRunEnds () { return m_runEnds; }
+
+    // get the end position (exclusive) of the run-th run of equal values in the sorted column
+    public int runEnd (int run) { return m_runEnds == null ? run + 1 : m_runEnds[run]; }
+
+    // get the number of runs of equal values in the sorted column
+    public int numRuns () { return m_runEnds == null ? m_numInstances : m_runEnds.length; }
+
+    // get the storage type of this column
+    public AttributeStorageType getStorageType () { return m_storageType; }
+
+    // get the number of instances
+    public int numInstances () { return m_numInstances; }
+
+    // Load the column before it is scanned. Columns in the heap are already loaded.
+    public void prefetch () {
+    }
+
+    // Whether the column is kept on disk instead of the heap
+    public boolean isOnDisk () { return false; }
+
+    // Release the memory outside the heap used by this column. A column in the heap is freed by the garbage collector.
+    public void close () {
+    }
+
+    // get the number of bytes used by this column outside the heap, see OffHeapAttributeColumn
+    public long offHeapBytes () { return 0; }
+
+    // get the number of bytes used by this column in the heap, including the sorted indices and values.
+    public long memoryInBytes () {
+        return (long)m_numInstances * (2 * m_storageType.bytesPerValue() + 4)
+                + (m_runEnds == null ? 0 : 4L * m_runEnds.length);
+    }
+}
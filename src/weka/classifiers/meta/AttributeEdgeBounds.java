@@ -0,0 +1,170 @@
+package weka.classifiers.meta;
+
+import java.util.Arrays;
+
+// This is a Class of the upper bounds of the best half edges of all the attributes, which is used to prune the
+// attributes in SingleStumpLearner without changing the result of the exhaustive search.
+//
+// For a fixed split of the instances sorted by attribute j, the half edge is:
+// \frac{1}{2}\gamma = \frac{1}{2}\sum_{l=1}^{k}\left | \sum_{i=1}^{n}w_{i,l}y_{i,l}\varphi(x_i) \right |
+// If the products w_{i,l}y_{i,l} change to w'_{i,l}y'_{i,l} (re-weighting in AdaBoostMH, or re-labeling in
+// ProductLearner), the half edge of the same split can increase at most by:
+// \frac{1}{2}D = \frac{1}{2}\sum_{i=1}^{n}\sum_{l=1}^{k}\left | w'_{i,l}y'_{i,l} - w_{i,l}y_{i,l} \right |
+// So, the best half edge of attribute j is bounded by its last best half edge plus D/2, and it is also bounded by
+// \frac{1}{2}\sum_{i=1}^{n}\sum_{l=1}^{k}\left | w'_{i,l}y'_{i,l} \right | \le \frac{1}{2} for any attribute, since the
+// weights sum to 1 and the labels are in {-1, 0, 1}.
+// D is summed as the weights and labels change (see "addWeightChange"): a re-weighting adds |w'_{i,l} - w_{i,l}| of
+// each label which is not 0, and a re-labeling adds w_{i,l}|y'_{i,l} - y_{i,l}| of each flipped label. By the
+// triangle inequality, the sum over several changes still bounds D, so only the bounds of the attributes are kept.
+//
+// The labels change a lot between the searches in ProductLearner, so the bounds are kept for two earlier searches:
+// the last search, and the last search on the original labels. The smaller bound of the two is used.
+// ProductLearner keeps the weights while it relabels, and the labels often flip back, so the sum over the changes is
+// much looser than D there. While the labels are saved (see ExtendedInstances.saveLabels), the distance to the saved
+// labels L = \sum_{i=1}^{n}\sum_{l=1}^{k}w_{i,l}\left | y_{i,l} - y^{(0)}_{i,l} \right | is also kept exactly, and
+// D of a kept search is bounded by its distance to the saved labels plus L. When the labels are restored, the products
+// are the same as when they were saved, so D of a kept search becomes its distance to the saved labels.
+public class AttributeEdgeBounds {
+    // Slack added to the bounds to cover the rounding errors of the sums.
+    protected static final double m_roundingSlack = 1e-10;
+
+    // Index of the search kept for the last search, and the one kept for the last search on the original labels.
+    protected static final int LAST = 0;
+    protected static final int ORIGINAL = 1;
+
+    // Number of attributes
+    protected int m_numAttrs = 0;
+
+    // The bounds of all the attributes of the two kept searches, and D since each of them. An item is null before such
+    // a search happens.
+    protected double[][] m_savedBounds = new double[2][];
+    protected double[] m_changes = new double[2];
+
+    // The bounds of the current search, which are refined when an attribute is scanned, and D since it.
+    protected double[] m_bounds;
+    protected double m_currentChanges = 0;
+    protected boolean m_originalLabels = false;
+
+    // While the labels are saved: L, the sum of the changes of the weights since then, and the bound of the distance
+    // between each search and the saved labels.
+    protected boolean m_labelsSaved = false;
+    protected double m_labelDistance = 0;
+    protected double m_weightChangesSinceLabelsSaved = 0;
+    protected double[] m_distancesToSavedLabels = new double[2];
+    protected double m_currentDistanceToSavedLabels = 0;
+
+    // Number of the attributes scanned and pruned, used to report the effect of pruning.
+    protected long m_numScanned = 0;
+    protected long m_numPruned = 0;
+
+    public AttributeEdgeBounds (int numAttrs) {
+        m_numAttrs = numAttrs;
+    }
+
+    // Update the bounds of all the attributes according to the changes since the kept searches.
+    // It should be invoked once before each search of the best stump.
+    public void update (ExtendedInstances trainingInsts) {
+        // Keep the previous search, whose bounds had been refined by its scans.
+        if (m_bounds != null) {
+            saveSearch(LAST);
+            if (m_originalLabels) {
+                saveSearch(ORIGINAL);
+            }
+        } else {
+            m_bounds = new double[m_numAttrs];
+        }
+        m_originalLabels = !trainingInsts.isVirtualLabels();
+        m_currentChanges = 0;
+        m_currentDistanceToSavedLabels = distanceToSavedLabels();
+
+        Arrays.fill(m_bounds, 0.5 + m_roundingSlack);
+        for (int s = 0; s < 2; s++) {
+            if (m_savedBounds[s] != null) {
+                double changes = m_changes[s];
+                if (m_labelsSaved) {
+                    changes = Math.min(changes, m_distancesToSavedLabels[s] + distanceToSavedLabels());
+                }
+                for (int j = 0; j < m_numAttrs; j++) {
+                    m_bounds[j] = Math.min(m_bounds[j], m_savedBounds[s][j] + changes / 2.0 + m_roundingSlack);
+                }
+            }
+        }
+    }
+
+    // Copy the bounds of the current search, and D since it, to the index-th kept search.
+    private void saveSearch (int index) {
+        if (m_savedBounds[index] == null) {
+            m_savedBounds[index] = new double[m_bounds.length];
+        }
+        System.arraycopy(m_bounds, 0, m_savedBounds[index], 0, m_bounds.length);
+        m_changes[index] = m_currentChanges;
+        m_distancesToSavedLabels[index] = m_currentDistanceToSavedLabels;
+    }
+
+    // The bound of the distance between the current products and the saved ones. L is exact while the weights do not
+    // change, otherwise it sums the changes of the labels, and the changes of the weights are added.
+    private double distanceToSavedLabels () {
+        return m_labelDistance + m_weightChangesSinceLabelsSaved;
+    }
+
+    // Add |w'_{i,l} - w_{i,l}||y_{i,l}| of a changed weight to D (see ExtendedInstances.setWeight).
+    public void addWeightChange (double change) {
+        m_changes[LAST] += change;
+        m_changes[ORIGINAL] += change;
+        m_currentChanges += change;
+        m_weightChangesSinceLabelsSaved += change;
+    }
+
+    // Add w_{i,l}|y'_{i,l} - y_{i,l}| of a changed label to D, and the change of w_{i,l}|y_{i,l} - y^{(0)}_{i,l}| to L
+    // (see ExtendedInstances.setLabel).
+    public void addLabelChange (double change, double labelDistanceChange) {
+        m_changes[LAST] += change;
+        m_changes[ORIGINAL] += change;
+        m_currentChanges += change;
+        if (m_weightChangesSinceLabelsSaved > 0) {
+            // L is not exact any more, so it sums the changes.
+            m_labelDistance += change;
+        } else {
+            m_labelDistance += labelDistanceChange;
+        }
+    }
+
+    // The labels are saved by ExtendedInstances.saveLabels.
+    public void labelsSaved () {
+        m_labelsSaved = true;
+        m_labelDistance = 0;
+        m_weightChangesSinceLabelsSaved = 0;
+        System.arraycopy(m_changes, 0, m_distancesToSavedLabels, 0, 2);
+        m_currentDistanceToSavedLabels = m_currentChanges;
+    }
+
+    // The labels are restored by ExtendedInstances.restoreLabels, which does not report the changed labels. If the
+    // weights changed since the labels were saved, the change of the restored products is not known, so the kept
+    // searches are not used any more.
+    public void labelsRestored () {
+        if (!m_labelsSaved) {
+            return;
+        }
+        m_labelsSaved = false;
+        boolean restored = m_weightChangesSinceLabelsSaved == 0;
+        for (int s = 0; s < 2; s++) {
+            m_changes[s] = restored ? m_distancesToSavedLabels[s] : Double.POSITIVE_INFINITY;
+        }
+        m_currentChanges = restored ? m_currentDistanceToSavedLabels : Double.POSITIVE_INFINITY;
+    }
+
+    // get the upper bound of the best half edge of the attrIndex-th attribute
+    public double getBound (int attrIndex) { return m_bounds[attrIndex]; }
+
+    // After scanning the attrIndex-th attribute, its bound is the maximum half edge over all its splits.
+    public void setScanned (int attrIndex, double maxHalfEdge) {
+        m_bounds[attrIndex] = maxHalfEdge;
+        m_numScanned++;
+    }
+
+    public void setPruned (int attrIndex) { m_numPruned++; }
+
+    public long getNumScanned () { return m_numScanned; }
+
+    public long getNumPruned () { return m_numPruned; }
+}
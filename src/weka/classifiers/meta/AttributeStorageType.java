@@ -0,0 +1,55 @@
+package weka.classifiers.meta;
+
+// Storage types of an attribute column in ExtendedInstances.
+// A column is kept in the narrowest type which can hold all its values, such as:
+// MNIST/USPS pixels are integers in [0, 255], so they fit in a byte,
+// and most sensor features lose nothing (or nothing important) at float precision.
+public enum AttributeStorageType {
+    BYTE(1),        // Integers in [0, 255], stored as unsigned bytes.
+    SHORT(2),       // Integers in [-32768, 32767].
+    FLOAT(4),       // Values that can be represented by a float.
+    DOUBLE(8);      // Everything else.
+
+    // Number of bytes used by each value of this type.
+    private final int m_bytesPerValue;
+
+    AttributeStorageType(int bytesPerValue) {
+        m_bytesPerValue = bytesPerValue;
+    }
+
+    public int bytesPerValue() { return m_bytesPerValue; }
+
+    // Check whether the given value can be stored by this type without any loss.
+    public boolean canHold(double value) {
+        switch (this) {
+            case BYTE:
+                return value >= 0 && value <= 255 && value == Math.rint(value);
+            case SHORT:
+                return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE && value == Math.rint(value);
+            case FLOAT:
+                return (double)(float)value == value || Double.isNaN(value);
+            default:
+                return true;
+        }
+    }
+
+    // Check whether all the given values can be stored by this type without any loss.
+    public boolean canHold(double[] values) {
+        for (double value : values) {
+            if (!canHold(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Detect the narrowest type which can hold all the given values without any loss.
+    public static AttributeStorageType detect(double[] values) {
+        for (AttributeStorageType type : values()) {
+            if (type.canHold(values)) {
+                return type;
+            }
+        }
+        return DOUBLE;
+    }
+}
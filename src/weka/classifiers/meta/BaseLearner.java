@@ -1,7 +1,10 @@
 package weka.classifiers.meta;
 
-public abstract class BaseLearner {
-    protected static double m_smoothingVal = 0;        // Smoothing Value when calculating \alpha and energy.
+import java.io.Serializable;
+
+// The base learners are saved with AdaBoostMH, so they are serializable.
+public abstract class BaseLearner implements Serializable {
+    protected double m_smoothingVal = 0;        // Smoothing Value when calculating \alpha and energy.
 
     // Number of attributes
     protected int m_numAttrs = 0;
@@ -17,6 +20,11 @@ public abstract class BaseLearner {
     protected int m_selectedAttr = 0;      // This is the selected attribute used to split the decision tree.
     protected double m_threshold = 0;      // This is the threshold used in function \varphi\left ( x \right )
 
+    // \varphi(x_i) of all the training instances as a bitset, in which the i-th bit is 1 if \varphi(x_i) = +1, and 0 if
+    // \varphi(x_i) = -1. It is computed once right after the learner is built, used instead of "doClassification" to
+    // relabel and reweight the training instances, and released after that. It is not saved with the model.
+    protected transient long[] m_phiBits;
+
     // This is the upper bound of the error rate, which we need to minimize.
     // Initialize energy as maximum of double, surely to decrease.
     protected double m_Energy = Double.MAX_VALUE;
@@ -33,12 +41,10 @@ public abstract class BaseLearner {
     // Calculate h_l(x_i) = v_l * \varphi(x_i)
     public abstract double doClassification(double[] testInst, int indexLabel) throws Exception;
 
-    // When operating a bunch of training instances, we need to do as follows:
-    // Get the target instance to be classified from the ExtendedInstances object, and transform it into a double array.
-    // Then invoke another doClassification function to do the actual classification operation.
-    public double doClassification(ExtendedInstances trainingInsts, int indexInstance, int indexLabel) throws Exception {
-        return doClassification(trainingInsts.getAttrValues(indexInstance), indexLabel);
-    }
+    // When operating a bunch of training instances, the attributes are kept column by column in the ExtendedInstances
+    // object, so we read the values we need directly from the columns instead of transforming the target instance
+    // into a double array. The values read are the stored ones, which are the same as the ones used in training.
+    public abstract double doClassification(ExtendedInstances trainingInsts, int indexInstance, int indexLabel) throws Exception;
 
     // Use to create an object of the class derived from BaseLearner.
     public abstract BaseLearner subCreate ();
@@ -71,6 +77,19 @@ public abstract class BaseLearner {
 
     public double getEnergy () { return m_Energy; }
 
+    // get \varphi(x_i) of all the training instances as a bitset, see "m_phiBits".
+    public long[] getPhiBits () { return m_phiBits; }
+
+    // get the votes which are multiplied by \varphi(x_i) in h_l(x_i) = v_l * \varphi(x_i)
+    public double[] getPhiVotes () { return m_V; }
+
+    public void releasePhiBits () { m_phiBits = null; }
+
+    // h_l(x_i) = v_l * \varphi(x_i) from the bitset, which is the same as doClassification(trainingInsts, i, l).
+    public static double classification (long[] phiBits, double[] votes, int indexInstance, int indexLabel) {
+        return ((phiBits[indexInstance >>> 6] >>> indexInstance) & 1) != 0 ? votes[indexLabel] : -votes[indexLabel];
+    }
+
     // eps_pls is \frac{1+\gamma}{2}, while eps_min is \frac{1-\gamma}{2}
     public double getEnergy(double eps_pls, double eps_min)
     {
@@ -109,6 +128,7 @@ public abstract class BaseLearner {
         baseLearner.m_selectedAttr = this.m_selectedAttr;
         baseLearner.m_threshold = this.m_threshold;
         baseLearner.m_Energy = this.m_Energy;
+        baseLearner.m_phiBits = this.m_phiBits;
 
         // In the first loop of product learner, m_V may be null.
         if (this.m_V != null) {
@@ -0,0 +1,98 @@
+package weka.classifiers.meta;
+
+import java.util.Arrays;
+
+// This is a Class to sort the values of an attribute column without boxing them.
+// The sort is stable, and the order is the same as the one of Double.compare (-0.0 before 0.0, NaN at the end), so the
+// sorted column, and therefore the model, is the same as the one sorted by a stable comparison sort.
+//   BYTE columns: counting sort over the 256 possible values, in O(n).
+//   Other columns: LSD radix sort on the IEEE-754 bit patterns of the values, with 11 bits in each pass. The bits are
+//   transformed so that their unsigned order is the order of the values, and a pass is skipped when all the values have
+//   the same digit, which is common for short and float values.
+public class ColumnSorter {
+    private static final int BITS = 11;
+    private static final int RADIX = 1 << BITS;
+    private static final int MASK = RADIX - 1;
+
+    // Returns the positions of the values sorted ascendingly. The values must have been converted to the storage type.
+    public static int[] sort (AttributeStorageType storageType, double[] values) {
+        if (storageType == AttributeStorageType.BYTE) {
+            return countingSort(values);
+        }
+        return radixSort(values);
+    }
+
+    // Counting sort of integers in [0, 255]
+    private static int[] countingSort (double[] values) {
+        int[] starts = new int[256 + 1];
+        for (double value : values) {
+            starts[(int)value + 1]++;
+        }
+        for (int v = 0; v < 256; v++) {
+            starts[v + 1] += starts[v];
+        }
+
+        int[] order = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            order[starts[(int)values[i]]++] = i;
+        }
+        return order;
+    }
+
+    // A key whose unsigned order is the order of Double.compare.
+    // The negative values have all their bits flipped, and the other values have their sign bit flipped.
+    // doubleToLongBits maps all the NaN values to one, which is bigger than the positive infinity.
+    private static long key (double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) | Long.MIN_VALUE);
+    }
+
+    private static int[] radixSort (double[] values) {
+        int numValues = values.length;
+        long[] keys = new long[numValues];
+        int[] order = new int[numValues];
+        for (int i = 0; i < numValues; i++) {
+            keys[i] = key(values[i]);
+            order[i] = i;
+        }
+        if (numValues < 2) {
+            return order;
+        }
+
+        long[] keysBuffer = new long[numValues];
+        int[] orderBuffer = new int[numValues];
+        int[] starts = new int[RADIX];
+
+        for (int shift = 0; shift < 64; shift += BITS) {
+            Arrays.fill(starts, 0);
+            for (int i = 0; i < numValues; i++) {
+                starts[(int)(keys[i] >>> shift) & MASK]++;
+            }
+            if (starts[(int)(keys[0] >>> shift) & MASK] == numValues) {
+                continue;
+            }
+
+            int start = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                int count = starts[digit];
+                starts[digit] = start;
+                start += count;
+            }
+
+            // Scanning in the current order keeps the sort stable.
+            for (int i = 0; i < numValues; i++) {
+                int pos = starts[(int)(keys[i] >>> shift) & MASK]++;
+                keysBuffer[pos] = keys[i];
+                orderBuffer[pos] = order[i];
+            }
+
+            long[] swapKeys = keys;
+            keys = keysBuffer;
+            keysBuffer = swapKeys;
+            int[] swapOrder = order;
+            order = orderBuffer;
+            orderBuffer = swapOrder;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,303 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// This is a Class of a compacted AdaBoostMH model, used for deployment.
+// Each term of the strong learner is a product of stumps: \alpha*\prod_{b}v^{(b)}_l*\varphi_b(x), so it can be written as
+// c_l*\Phi(x), in which c_l = \alpha*\prod_{b}v^{(b)}_l, and \Phi(x) = \prod_{b}\varphi_b(x) only depends on the
+// (attribute, threshold) of the stumps. Then:
+// 1. The identical stumps of all the terms are kept only once, so each of them is evaluated once per instance.
+// 2. A stump which appears twice in a product is removed, because \varphi_b(x)^2 = 1.
+// 3. The terms with the same set of stumps are merged by summing their vectors c_l.
+// 4. Optionally, the merged terms whose max_l|c_l| is not bigger than a tolerance are dropped.
+// The scores are the same as the ones of the original model except rounding, unless some terms are dropped.
+public class CompactModel implements Serializable {
+    // The (attribute, threshold) of each distinct stump
+    protected int[] m_stumpAttrs;
+    protected double[] m_stumpThresholds;
+
+    // Indices of the stumps in each term. A term without any stump is a constant.
+    protected int[][] m_termStumps;
+
+    // Coefficients of the terms: m_coefficients[term * m_numClasses + l] = c_l
+    protected double[] m_coefficients;
+
+    protected int m_numClasses;
+
+    // Sizes of the original model
+    protected int m_numOriginalTerms;
+    protected int m_numOriginalStumps;
+
+    // Number of merged terms dropped by the tolerance
+    protected int m_numDroppedTerms;
+
+    // A key of a stump to find the identical ones
+    private static final class StumpKey {
+        final int attr;
+        final double threshold;
+
+        StumpKey (int attr, double threshold) {
+            this.attr = attr;
+            this.threshold = threshold;
+        }
+
+        public boolean equals (Object obj) {
+            if (!(obj instanceof StumpKey)) {
+                return false;
+            }
+            StumpKey other = (StumpKey)obj;
+            return attr == other.attr && Double.compare(threshold, other.threshold) == 0;
+        }
+
+        public int hashCode () { return 31 * attr + Double.hashCode(threshold); }
+    }
+
+    // Compact the model trained by the given booster. Terms whose max_l|c_l| <= alphaTolerance are dropped,
+    // so a tolerance of 0 only drops the terms which have no effect.
+    public CompactModel (AdaBoostMH booster, double alphaTolerance) {
+        int numTerms = booster.getNumIterationsPerformed();
+
+        HashMap<StumpKey, Integer> stumpIndices = new HashMap<>();
+        ArrayList<StumpKey> stumps = new ArrayList<>();
+        HashMap<List<Integer>, double[]> terms = new HashMap<>();
+        ArrayList<List<Integer>> termOrder = new ArrayList<>();
+
+        for (int t = 0; t < numTerms; t++) {
+            BaseLearner baseLearner = booster.getBaseLearner(t);
+            double alpha = baseLearner.getAlpha();
+
+            ArrayList<BaseLearner> factors = new ArrayList<>();
+            if (baseLearner instanceof ProductLearner) {
+                ProductLearner product = (ProductLearner)baseLearner;
+                for (int ib = 0; ib < product.getNumBaseLearners(); ib++) {
+                    factors.add(product.getBaseLearner(ib));
+                }
+            }
+            else {
+                factors.add(baseLearner);
+            }
+
+            if (m_numClasses == 0) {
+                m_numClasses = factors.get(0).getVoteVector().length;
+            }
+
+            // c_l = \alpha*\prod_{b}v^{(b)}_l, and the stumps of \Phi(x), in which a pair of identical stumps cancels.
+            double[] coefficients = new double[m_numClasses];
+            Arrays.fill(coefficients, alpha);
+            ArrayList<Integer> termStumps = new ArrayList<>();
+            for (BaseLearner factor : factors) {
+                double[] v = factor.getVoteVector();
+                for (int l = 0; l < m_numClasses; l++) {
+                    coefficients[l] *= v[l];
+                }
+
+                StumpKey key = new StumpKey(factor.getSelectedAttr(), factor.getThreshold());
+                Integer stump = stumpIndices.get(key);
+                if (stump == null) {
+                    stump = stumps.size();
+                    stumpIndices.put(key, stump);
+                    stumps.add(key);
+                }
+                if (!termStumps.remove(stump)) {
+                    termStumps.add(stump);
+                }
+                m_numOriginalStumps++;
+            }
+            termStumps.sort(null);
+
+            double[] merged = terms.get(termStumps);
+            if (merged == null) {
+                terms.put(termStumps, coefficients);
+                termOrder.add(termStumps);
+            }
+            else {
+                for (int l = 0; l < m_numClasses; l++) {
+                    merged[l] += coefficients[l];
+                }
+            }
+        }
+        m_numOriginalTerms = numTerms;
+
+        // Drop the terms below the tolerance, and keep only the stumps used by the remaining terms.
+        ArrayList<List<Integer>> keptTerms = new ArrayList<>();
+        for (List<Integer> term : termOrder) {
+            double maxAbs = 0;
+            for (double c : terms.get(term)) {
+                maxAbs = Math.max(maxAbs, Math.abs(c));
+            }
+            if (maxAbs > alphaTolerance) {
+                keptTerms.add(term);
+            }
+        }
+        m_numDroppedTerms = termOrder.size() - keptTerms.size();
+
+        int[] newIndices = new int[stumps.size()];
+        Arrays.fill(newIndices, -1);
+        ArrayList<StumpKey> keptStumps = new ArrayList<>();
+        m_termStumps = new int[keptTerms.size()][];
+        m_coefficients = new double[keptTerms.size() * m_numClasses];
+        for (int term = 0; term < keptTerms.size(); term++) {
+            List<Integer> termStumps = keptTerms.get(term);
+            m_termStumps[term] = new int[termStumps.size()];
+            for (int b = 0; b < termStumps.size(); b++) {
+                int stump = termStumps.get(b);
+                if (newIndices[stump] < 0) {
+                    newIndices[stump] = keptStumps.size();
+                    keptStumps.add(stumps.get(stump));
+                }
+                m_termStumps[term][b] = newIndices[stump];
+            }
+            System.arraycopy(terms.get(termStumps), 0, m_coefficients, term * m_numClasses, m_numClasses);
+        }
+
+        m_stumpAttrs = new int[keptStumps.size()];
+        m_stumpThresholds = new double[keptStumps.size()];
+        for (int stump = 0; stump < keptStumps.size(); stump++) {
+            m_stumpAttrs[stump] = keptStumps.get(stump).attr;
+            m_stumpThresholds[stump] = keptStumps.get(stump).threshold;
+        }
+    }
+
+    // Compute the scores f_l(x) of the given instance represented by a double array.
+    public double[] scores (double[] testInst) {
+        // \varphi_b(x) of each distinct stump, the same as BaseLearner.phi
+        boolean[] positive = new boolean[m_stumpAttrs.length];
+        for (int stump = 0; stump < m_stumpAttrs.length; stump++) {
+            positive[stump] = testInst[m_stumpAttrs[stump]] > m_stumpThresholds[stump];
+        }
+
+        double[] scores = new double[m_numClasses];
+        for (int term = 0; term < m_termStumps.length; term++) {
+            // \Phi(x) is -1 if an odd number of the stumps are -1.
+            boolean negative = false;
+            for (int stump : m_termStumps[term]) {
+                negative ^= !positive[stump];
+            }
+
+            int offset = term * m_numClasses;
+            if (negative) {
+                for (int l = 0; l < m_numClasses; l++) {
+                    scores[l] -= m_coefficients[offset + l];
+                }
+            }
+            else {
+                for (int l = 0; l < m_numClasses; l++) {
+                    scores[l] += m_coefficients[offset + l];
+                }
+            }
+        }
+        return scores;
+    }
+
+    // The probability distribution of the given instance, computed the same way as AdaBoostMH.distributionForInstance.
+    public double[] distributionForInstance (Instance instance) {
+        return distributionForInstance(instance.toDoubleArray());
+    }
+
+    // The probability distribution of the given instance represented by a double array.
+    public double[] distributionForInstance (double[] testInst) {
+        double[] classification = scores(testInst);
+        for (int l = 0; l < m_numClasses; l++) {
+            classification[l] = Math.exp(classification[l]);
+        }
+        Utils.normalize(classification, Utils.sum(classification));
+        return classification;
+    }
+
+    // Classify the given instance, the class with the maximum score is predicted.
+    public int classifyInstance (Instance instance) {
+        double[] scores = scores(instance.toDoubleArray());
+        int predicted = 0;
+        for (int l = 1; l < scores.length; l++) {
+            if (scores[l] > scores[predicted]) {
+                predicted = l;
+            }
+        }
+        return predicted;
+    }
+
+    public int numTerms () { return m_termStumps.length; }
+    public int numStumps () { return m_stumpAttrs.length; }
+    public int numDroppedTerms () { return m_numDroppedTerms; }
+
+    // Print the sizes of the original and compacted models, and the accuracy of both on the given data.
+    public void printReport (AdaBoostMH booster, Instances data) throws Exception {
+        int numCorrectOriginal = 0;
+        int numCorrectCompact = 0;
+        int numChanged = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            int original = Utils.maxIndex(booster.distributionForInstance(instance));
+            int compact = classifyInstance(instance);
+            if (original == (int)instance.classValue()) {
+                numCorrectOriginal++;
+            }
+            if (compact == (int)instance.classValue()) {
+                numCorrectCompact++;
+            }
+            if (original != compact) {
+                numChanged++;
+            }
+        }
+
+        int numInstances = Math.max(1, data.numInstances());
+        double accuracyOriginal = (double)numCorrectOriginal / numInstances;
+        double accuracyCompact = (double)numCorrectCompact / numInstances;
+
+        System.out.println("Terms: " + m_numOriginalTerms + " -> " + numTerms()
+                + " (" + m_numDroppedTerms + " dropped by the tolerance)");
+        System.out.println("Stumps: " + m_numOriginalStumps + " -> " + numStumps());
+        System.out.println("Accuracy: " + String.format("%.4f", accuracyOriginal) + " -> "
+                + String.format("%.4f", accuracyCompact) + " (delta "
+                + String.format("%+.4f", accuracyCompact - accuracyOriginal) + ", "
+                + numChanged + " predictions changed)");
+    }
+
+    // Usage: CompactModel -t <train arff> -T <test arff> [-I 100] [-M 3] [-tol 0]
+    public static void main(String[] argv) throws Exception {
+        String trainFile = null;
+        String testFile = null;
+        double tolerance = 0;
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setPrintProgress(false);
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": trainFile = argv[++i]; break;
+                case "-T": testFile = argv[++i]; break;
+                case "-I": booster.setI(Integer.parseInt(argv[++i])); break;
+                case "-M": booster.setM(Integer.parseInt(argv[++i])); break;
+                case "-tol": tolerance = Double.parseDouble(argv[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (trainFile == null || testFile == null) {
+            System.err.println("Usage: CompactModel -t <train arff> -T <test arff> [-I 100] [-M 3] [-tol 0]");
+            return;
+        }
+
+        Instances train = new Instances(new BufferedReader(new FileReader(trainFile)));
+        train.setClassIndex(train.numAttributes() - 1);
+        Instances test = new Instances(new BufferedReader(new FileReader(testFile)));
+        test.setClassIndex(test.numAttributes() - 1);
+
+        booster.initializeClassifier(train);
+        while (booster.next()) {
+            // Train all the iterations without printing the base learners.
+        }
+        booster.done();
+
+        CompactModel model = new CompactModel(booster, tolerance);
+        model.printReport(booster, test);
+    }
+}
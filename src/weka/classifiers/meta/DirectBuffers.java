@@ -0,0 +1,65 @@
+package weka.classifiers.meta;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// This is a Class to allocate and free the direct buffers which keep the training data outside the heap
+// (see OffHeapLabelWeights and OffHeapAttributeColumn), so that the garbage collector does not trace them.
+// A direct buffer is normally freed when it is garbage collected, which may be long after the training. "free" releases
+// its memory at once with Unsafe.invokeCleaner (Java 9 or later) or the cleaner of the buffer (Java 8). The buffer must
+// not be read after it is freed, so its owner drops all the references to it first.
+// The direct memory is limited by -XX:MaxDirectMemorySize, which is the maximum heap size by default.
+public class DirectBuffers {
+    private static final Object s_unsafe;
+    private static final Method s_invokeCleaner;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Throwable e) {
+            // Java 8, whose buffers are freed with their cleaners.
+            invokeCleaner = null;
+        }
+        s_unsafe = unsafe;
+        s_invokeCleaner = invokeCleaner;
+    }
+
+    // Allocate a direct buffer in the native byte order.
+    public static ByteBuffer allocate (long numBytes) {
+        if (numBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A direct buffer can not hold " + numBytes + " bytes.");
+        }
+        return ByteBuffer.allocateDirect((int)numBytes).order(ByteOrder.nativeOrder());
+    }
+
+    // Free the memory of a direct buffer (including a memory-mapped one) returned by "allocate" or FileChannel.map,
+    // not a slice nor a duplicate. If it is not possible, the buffer is freed when it is garbage collected.
+    public static void free (ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        try {
+            if (s_invokeCleaner != null) {
+                s_invokeCleaner.invoke(s_unsafe, buffer);
+            }
+            else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Throwable e) {
+            // The buffer is freed by the garbage collector.
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package weka.classifiers.meta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This is a Class to classify instances with early exit, used when only the predicted class is needed.
+// Each term of the strong learner changes the score of each class by \alpha^{(t)}*v_l*\varphi(x), whose absolute value
+// is not bigger than |\alpha^{(t)}|, because v_l and \varphi(x) are in {-1, 0, +1}. So, after some terms are summed,
+// the gap between any two classes can change by at most 2 * \sum_{remaining t}|\alpha^{(t)}|.
+// The terms are evaluated by descending |\alpha|, and the scoring stops once the gap between the top two classes is
+// bigger than this bound, because the leading class can not be beaten by the remaining terms.
+public class EarlyExitScorer {
+    // Indices of the base learners ordered by descending |\alpha|
+    protected int[] m_order;
+
+    // m_remainingAbsAlpha[t] = \sum_{s >= t}|\alpha| of the base learners in m_order
+    protected double[] m_remainingAbsAlpha;
+
+    // The base learners of the strong learner
+    protected ArrayList<BaseLearner> m_baseLearners;
+
+    // The gap must also be bigger than this slack, so the rounding errors of the sums, which are taken in another
+    // order than in AdaBoostMH.distributionForInstance, can not change the prediction.
+    protected double m_slack;
+
+    // Number of classified instances and number of terms evaluated for them
+    protected AtomicLong m_numInstances = new AtomicLong();
+    protected AtomicLong m_numEvaluatedTerms = new AtomicLong();
+
+    // Build the scorer with the first numBaseLearners base learners.
+    public EarlyExitScorer (ArrayList<BaseLearner> baseLearners, int numBaseLearners) {
+        m_baseLearners = baseLearners;
+
+        Integer[] order = new Integer[numBaseLearners];
+        for (int t = 0; t < numBaseLearners; t++) {
+            order[t] = t;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer t) -> -Math.abs(baseLearners.get(t).getAlpha())));
+
+        m_order = new int[numBaseLearners];
+        m_remainingAbsAlpha = new double[numBaseLearners + 1];
+        for (int t = numBaseLearners - 1; t >= 0; t--) {
+            m_order[t] = order[t];
+            m_remainingAbsAlpha[t] = m_remainingAbsAlpha[t + 1] + Math.abs(baseLearners.get(order[t]).getAlpha());
+        }
+
+        m_slack = 1e-9 * Math.max(1, m_remainingAbsAlpha[0]);
+    }
+
+    // Whether the prediction of the scorer is always the same as the one from AdaBoostMH.distributionForInstance.
+    // The scores are bounded by \sum|\alpha|, and e^{f_l} in distributionForInstance can overflow (or underflow)
+    // when they are bigger than about 709, which breaks the order of the probabilities.
+    public boolean isExact () {
+        return m_remainingAbsAlpha[0] <= 700;
+    }
+
+    // Classify the given instance. Returns the predicted class,
+    // or -1 if the top two classes are too close to be decided (almost a tie).
+    public int classify (double[] testInst, int numClasses) throws Exception {
+        double[] scores = new double[numClasses];
+        int numTerms = m_order.length;
+
+        int t = 0;
+        int predicted = -1;
+        while (t < numTerms) {
+            BaseLearner baseLearner = m_baseLearners.get(m_order[t]);
+            double alpha = baseLearner.getAlpha();
+            for (int l = 0; l < numClasses; l++) {
+                scores[l] += alpha * baseLearner.doClassification(testInst, l);
+            }
+            t++;
+
+            // Find the top two classes.
+            int first = 0;
+            double second = Double.NEGATIVE_INFINITY;
+            for (int l = 1; l < numClasses; l++) {
+                if (scores[l] > scores[first]) {
+                    second = scores[first];
+                    first = l;
+                }
+                else if (scores[l] > second) {
+                    second = scores[l];
+                }
+            }
+
+            if (scores[first] - second > 2 * m_remainingAbsAlpha[t] + m_slack) {
+                predicted = first;
+                break;
+            }
+        }
+
+        m_numInstances.incrementAndGet();
+        m_numEvaluatedTerms.addAndGet(t);
+
+        return predicted;
+    }
+
+    // Add the terms evaluated by the full scoring of an instance which is not decided by "classify".
+    public void addEvaluatedTerms (int numTerms) {
+        m_numEvaluatedTerms.addAndGet(numTerms);
+    }
+
+    public int numTerms () { return m_order.length; }
+
+    public long getNumInstances () { return m_numInstances.get(); }
+
+    // get the average number of terms evaluated for each classified instance
+    public double getAverageEvaluatedTerms () {
+        long numInstances = m_numInstances.get();
+        return numInstances == 0 ? 0 : (double)m_numEvaluatedTerms.get() / numInstances;
+    }
+}
@@ -0,0 +1,63 @@
+package weka.classifiers.meta;
+
+// This is a Class of the class-wise loops over the K weights and labels of one instance, which are the inner loops of
+// StumpAlgorithm. This default implementation is scalar.
+// A SIMD implementation using the Java Vector API (jdk.incubator.vector) is in "src-simd", which is compiled separately
+// because it needs a JDK 16 or later. It is only selected when the system property "adaboostmh.simd" is "true", it is on
+// the classpath and the JVM is started with "--add-modules jdk.incubator.vector". Its sums are added in another order,
+// so the models may differ in the last bits. Otherwise, this scalar implementation is used.
+public class EdgeKernels {
+    // Name of the SIMD implementation
+    protected static final String VECTOR_KERNELS = "weka.classifiers.meta.VectorEdgeKernels";
+
+    // The implementation selected at runtime
+    private static final EdgeKernels m_instance = select();
+
+    // get the implementation selected at runtime
+    public static EdgeKernels getInstance () { return m_instance; }
+
+    private static EdgeKernels select () {
+        if ("true".equals(System.getProperty("adaboostmh.simd"))) {
+            try {
+                return (EdgeKernels) Class.forName(VECTOR_KERNELS).getDeclaredConstructor().newInstance();
+            } catch (Throwable e) {
+                // The class is not compiled, or the module jdk.incubator.vector is not added.
+            }
+        }
+        return new EdgeKernels();
+    }
+
+    // The name of this implementation, used in reports.
+    public String getName () { return "scalar"; }
+
+    // Step over an instance in the split scan: edges[l] -= weights[l] * labels[l]
+    public void subtractEdges (double[] edges, double[] weights, int[] labels, int numClasses) {
+        for (int l = 0; l < numClasses; l++) {
+            edges[l] -= weights[l] * labels[l];
+        }
+    }
+
+    // Sum of the absolute values of all the class-wise edges, that is the half edge of the split.
+    public double sumAbs (double[] edges, int numClasses) {
+        double sum = 0;
+        for (int l = 0; l < numClasses; l++) {
+            if ( edges[l] > 0 ) {
+                sum += edges[l];
+            }
+            else {
+                sum -= edges[l];
+            }
+        }
+        return sum;
+    }
+
+    // Add an instance to the class-wise sums of weights and initial edges:
+    // weightsPerClass[l] += weights[l], edges[l] += weights[l] * labels[l]
+    public void addWeightsAndEdges (double[] weightsPerClass, double[] edges, double[] weights, int[] labels,
+                                    int numClasses) {
+        for (int l = 0; l < numClasses; l++) {
+            weightsPerClass[l] += weights[l];
+            edges[l] += weights[l] * labels[l];
+        }
+    }
+}
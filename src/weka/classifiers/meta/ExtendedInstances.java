@@ -1,14 +1,32 @@
 package weka.classifiers.meta;
 
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.converters.ArffLoader;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
 
 // This is a Class of all the extended instances by adding several critical complements.
-// It contains two critical data members: m_weightedInstances and m_sortedInstances.
-// m_sortedInstances: Keeps all the original instances extended by adding wights and multiple labels.
-// m_sortedInstances: Keeps all the sorted data by each attribute.
-public class ExtendedInstances {
+// It contains two critical data members: m_weightedInstances and m_attributeColumns.
+// m_weightedInstances: Keeps all the original instances extended by adding wights and multiple labels.
+// m_attributeColumns: Keeps all the attribute values, and all the sorted data by each attribute.
+// In the off-heap mode, the weights and labels are kept in m_offHeapWeights instead of m_weightedInstances, and the
+// columns are kept in direct buffers (see OffHeapAttributeColumn), so that the heap stays small and the garbage
+// collector does not trace the training data. The buffers are released by "close".
+// The weights and labels are read with the indexed accessors "getWeight" and "getLabel", which work in both modes.
+public class ExtendedInstances implements AutoCloseable {
     // Number of attributes
     protected int m_numAttrs = 0;
     // Number of weights/labels/classes
@@ -20,89 +38,817 @@ public class ExtendedInstances {
     protected double m_DoublePrecision = 0.0001;
 
     // The ArrayList keeps all the original instances extended by appending wights and multiple labels.
-    // Each item in the ArrayList represents an instance with all its attributes, weights and labels.
+    // Each item in the ArrayList represents an instance with its weights and labels.
     protected ArrayList<WeightedMultiLabeledInstance> m_weightedInstances = new ArrayList<>();
 
-    // Keeps all the data sorted by each attribute.
-    // The first ArrayList represents all the attributes.
-    // The second Arraylist represents all the instances sorted by the attributes above.
-    // Map.Entry represents each instances contains two parts: First Integer is index of the instance, Second Double is its value.
-    protected ArrayList<ArrayList<Map.Entry<Integer, Double>>> m_sortedInstances;
+    // The weights and labels of all the instances outside the heap, or null if they are kept in m_weightedInstances.
+    protected OffHeapLabelWeights m_offHeapWeights = null;
+
+    // Whether the attribute columns are kept outside the heap, in which case they are released by "close"
+    protected boolean m_offHeap = false;
+
+    // Whether the attribute columns belong to this data, which is false for a view sharing them.
+    protected boolean m_ownsColumns = true;
+
+    // The original labels kept while ProductLearner modifies them, see "saveLabels".
+    protected ArrayList<int[]> m_savedLabels = null;
+    protected ByteBuffer[] m_savedOffHeapLabels = null;
+
+    // Keeps all the attribute values column by column, as well as all the data sorted by each attribute.
+    // Each item in the ArrayList represents an attribute, whose values are kept in its own storage type.
+    protected ArrayList<AttributeColumn> m_attributeColumns;
+
+    // The rows used in training, or null if all the instances are used.
+    // The masked rows are kept in the columns, but they have zero weights and are skipped in the stump search.
+    protected boolean[] m_activeRows = null;
+
+    // Number of instances used in training
+    protected int m_numActiveInstances = 0;
+
+    // The storage types assigned to the attributes, which are also used when new instances are appended.
+    // It is null if the storage types are detected.
+    protected AttributeStorageType[] m_requestedStorageTypes;
+
+    // Upper bounds of the best half edges of all the attributes, used to prune the attributes in the stump search.
+    // It is null if the pruning is disabled.
+    protected AttributeEdgeBounds m_edgeBounds = null;
+
+    // The activity of the attributes, used to skip the attributes which are never close to being selected.
+    // It is null if the adaptive pruning is disabled.
+    protected AttributeActivity m_attributeActivity = null;
+
+    // The attributes searched by the stump search in the current iteration, or null if all of them are searched.
+    protected boolean[] m_attributeSample = null;
+
+    // Whether the labels are currently the virtual labels modified in ProductLearner.
+    protected boolean m_virtualLabels = false;
+
+    // Whether the instances only keep the classes whose weights are not negligible (see "dropSmallWeights"), in which
+    // case the stump search only visits the kept classes of each instance.
+    protected boolean m_sparseClasses = false;
 
     // Construction function for all the training data, which is regarded as an Instances object.
+    // The storage type of each attribute is detected from its values.
     public ExtendedInstances (Instances rawTrainingData) {
+        this(rawTrainingData, null);
+    }
+
+    // Construction function for all the training data, which is regarded as an Instances object.
+    // storageTypes keeps the storage type of each attribute. If it is null, or the type of an attribute is null,
+    // the type is detected from the values of the attribute.
+    // FLOAT may be assigned to any attribute, in which case the values are rounded to float precision,
+    // while BYTE and SHORT are only used when they can hold all the values of the attribute.
+    public ExtendedInstances (Instances rawTrainingData, AttributeStorageType[] storageTypes) {
+        this(rawTrainingData, storageTypes, null);
+    }
+
+    // Construction function for all the training data, which is regarded as an Instances object.
+    // If diskDirectory is not null, each attribute column is written to a memory-mapped file in this directory as soon
+    // as it is built (see MappedAttributeColumn), so only the weights and labels stay in the heap during training.
+    public ExtendedInstances (Instances rawTrainingData, AttributeStorageType[] storageTypes, File diskDirectory) {
+        this(rawTrainingData, storageTypes, diskDirectory, false);
+    }
+
+    // Construction function for all the training data, which is regarded as an Instances object.
+    // If offHeap is true, the weights, the labels and the attribute columns (unless they are kept in diskDirectory) are
+    // kept outside the heap, and must be released by "close" after training.
+    public ExtendedInstances (Instances rawTrainingData, AttributeStorageType[] storageTypes, File diskDirectory,
+                              boolean offHeap) {
         this.m_numAttrs = rawTrainingData.numAttributes() - 1;  // the last value is classification
         this.m_numClasses = rawTrainingData.numClasses();
         this.m_numInstances = rawTrainingData.numInstances();
+        this.m_numActiveInstances = m_numInstances;
 
-        this.m_sortedInstances = new ArrayList<>();
+        this.m_attributeColumns = new ArrayList<>();
+        this.m_requestedStorageTypes = storageTypes;
+        this.m_offHeap = offHeap;
 
-        // Create the container of the sorted data, in which each item is an ArrayList.
-        for (int j = 0; j < m_numAttrs; j++) {
-            m_sortedInstances.add(new ArrayList<>());
+        if (offHeap) {
+            m_offHeapWeights = new OffHeapLabelWeights(m_numInstances, m_numClasses);
+            for (int i = 0; i < m_numInstances; i++) {
+                m_offHeapWeights.setClass(i, (int)rawTrainingData.instance(i).classValue());
+                m_offHeapWeights.initWeights(i, m_numInstances);
+            }
+        }
+        else {
+            // Iterate all the instances
+            for (int i = 0; i < m_numInstances; i++) {
+                // Append a weight and a label array on the current instance.
+                m_weightedInstances.add(new WeightedMultiLabeledInstance(rawTrainingData.instance(i),
+                        m_numClasses, m_numInstances));
+            }
         }
 
-        // Iterate all the instances
-        for (int i = 0; i < m_numInstances; i++) {
-            // Append a weight and a label array on the current instance.
-            m_weightedInstances.add(new WeightedMultiLabeledInstance(rawTrainingData.instance(i),
-                    m_numAttrs, m_numClasses, m_numInstances));
+        // Build the column of each attribute
+        buildColumns(j -> {
+            double[] values = new double[m_numInstances];
+            for (int i = 0; i < m_numInstances; i++) {
+                values[i] = rawTrainingData.instance(i).value(j);
+            }
+            return values;
+        }, diskDirectory);
+
+        // Check whether the sum of all the weigths equals to 1
+        double weightssum = getSumWeights();
+        if (Math.abs(weightssum - 1.0) > m_DoublePrecision) {
+            System.err.println("Sum of weights (" + weightssum + ") != 1!");
+        }
+    }
+
+    // Construction function used to load the training data from a file, see "loadOnDisk".
+    private ExtendedInstances (int numAttrs, int numClasses, AttributeStorageType[] storageTypes) {
+        this.m_numAttrs = numAttrs;
+        this.m_numClasses = numClasses;
+        this.m_attributeColumns = new ArrayList<>();
+        this.m_requestedStorageTypes = storageTypes;
+    }
+
+    // Load the training data from an ARFF file which may be larger than the memory. The class must be the last
+    // attribute. The instances are read one by one, and their attribute values are written to a temporary file in
+    // blocks of rows, each of which is kept column by column. Then the columns are read back one at a time, sorted,
+    // and written to memory-mapped files in diskDirectory. So, the heap only needs to keep the weights and labels of
+    // all the instances, and one attribute column per thread while it is sorted.
+    public static ExtendedInstances loadOnDisk (ArffLoader loader, File diskDirectory,
+                                                AttributeStorageType[] storageTypes) throws Exception {
+        return loadOnDisk(loader, diskDirectory, storageTypes, false);
+    }
+
+    // Load the training data on disk as above. If offHeap is true, the weights and labels are also kept outside the
+    // heap, so the heap only keeps the class of each instance.
+    public static ExtendedInstances loadOnDisk (ArffLoader loader, File diskDirectory,
+                                                AttributeStorageType[] storageTypes, boolean offHeap)
+            throws Exception {
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(structure.numAttributes() - 1);
+
+        int numAttrs = structure.numAttributes() - 1;
+        ExtendedInstances insts = new ExtendedInstances(numAttrs, structure.numClasses(), storageTypes);
+        insts.m_offHeap = offHeap;
+        // The classes of the instances in the off-heap mode, until the number of instances is known
+        int[] classIndices = new int[offHeap ? 1024 : 0];
+        int numRead = 0;
+
+        // Number of rows in a block, so that a block takes about 64MB.
+        int blockSize = Math.max(1, (8 << 20) / Math.max(1, numAttrs));
+        double[] block = new double[blockSize * numAttrs];
+        ArrayList<Integer> blockRows = new ArrayList<>();
+
+        File rowsFile = File.createTempFile("rows", ".bin", diskDirectory);
+        rowsFile.deleteOnExit();
+        try (RandomAccessFile rows = new RandomAccessFile(rowsFile, "rw")) {
+            FileChannel channel = rows.getChannel();
+
+            int numRows = 0;
+            Instance instance;
+            while ((instance = loader.getNextInstance(structure)) != null) {
+                if (instance.classIsMissing()) {
+                    continue;
+                }
+
+                // The weights are initialized again when the number of instances is known.
+                if (offHeap) {
+                    if (numRead == classIndices.length) {
+                        classIndices = Arrays.copyOf(classIndices, 2 * numRead);
+                    }
+                    classIndices[numRead] = (int)instance.classValue();
+                } else {
+                    insts.m_weightedInstances.add(new WeightedMultiLabeledInstance(instance, insts.m_numClasses, 1));
+                }
+                numRead++;
+                for (int j = 0; j < numAttrs; j++) {
+                    block[j * blockSize + numRows] = instance.value(j);
+                }
+                numRows++;
+
+                if (numRows == blockSize) {
+                    writeBlock(channel, block, blockSize, numRows, numAttrs);
+                    blockRows.add(numRows);
+                    numRows = 0;
+                }
+            }
+            if (numRows > 0) {
+                writeBlock(channel, block, blockSize, numRows, numAttrs);
+                blockRows.add(numRows);
+            }
+
+            insts.m_numInstances = numRead;
+            insts.m_numActiveInstances = insts.m_numInstances;
+            if (offHeap) {
+                insts.m_offHeapWeights = new OffHeapLabelWeights(numRead, insts.m_numClasses);
+                for (int i = 0; i < numRead; i++) {
+                    insts.m_offHeapWeights.setClass(i, classIndices[i]);
+                }
+                classIndices = null;
+            }
+            insts.resetWeights();
+
+            // Read back each column from all the blocks. The reads at given positions may be done by several threads.
+            insts.buildColumns(j -> {
+                double[] values = new double[insts.m_numInstances];
+                long blockStart = 0;
+                int offset = 0;
+                try {
+                    for (int numBlockRows : blockRows) {
+                        ByteBuffer buffer = ByteBuffer.allocate(numBlockRows * 8).order(ByteOrder.nativeOrder());
+                        long position = blockStart + (long)j * numBlockRows * 8;
+                        while (buffer.hasRemaining()) {
+                            if (channel.read(buffer, position + buffer.position()) < 0) {
+                                throw new IOException("Unexpected end of " + rowsFile);
+                            }
+                        }
+                        buffer.flip();
+                        buffer.asDoubleBuffer().get(values, offset, numBlockRows);
+
+                        blockStart += (long)numBlockRows * numAttrs * 8;
+                        offset += numBlockRows;
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read attribute " + j + " from " + rowsFile, e);
+                }
+                return values;
+            }, diskDirectory);
+        } finally {
+            rowsFile.delete();
+        }
+
+        return insts;
+    }
+
+    // Write the first numRows rows of a block to the end of the file, column by column.
+    private static void writeBlock (FileChannel channel, double[] block, int blockSize, int numRows, int numAttrs)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(numRows * numAttrs * 8).order(ByteOrder.nativeOrder());
+        for (int j = 0; j < numAttrs; j++) {
+            buffer.asDoubleBuffer().put(block, j * blockSize, numRows);
+            buffer.position(buffer.position() + numRows * 8);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
 
-            // Copy all the key value pairs (index, attribute) of current instance to the sorted array of instances.
-            // The j-th attribute of current instance is copied to the j-th sorted array of instances.
+    // Number of threads used to build the attribute columns
+    public static int numBuildThreads (int numAttrs) {
+        return Math.max(1, Math.min(numAttrs, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Build the columns of all the attributes, and add them to m_attributeColumns in the order of the attributes.
+    // valuesOf(j) returns the values of the j-th attribute. The columns do not depend on each other, so they are built
+    // by a pool of threads, each of which extracts, sorts and keeps the values of one attribute at a time.
+    private void buildColumns (IntFunction<double[]> valuesOf, File diskDirectory) {
+        int numThreads = numBuildThreads(m_numAttrs);
+        if (numThreads == 1) {
             for (int j = 0; j < m_numAttrs; j++) {
-                Map<Integer, Double> map = new HashMap<>();
-                map.put(i, rawTrainingData.instance(i).value(j));
-                m_sortedInstances.get(j).addAll(map.entrySet());
+                m_attributeColumns.add(buildColumn(j, valuesOf.apply(j), diskDirectory));
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<AttributeColumn>> futures = new ArrayList<>(m_numAttrs);
+            for (int j = 0; j < m_numAttrs; j++) {
+                final int attrIndex = j;
+                futures.add(executor.submit(() -> buildColumn(attrIndex, valuesOf.apply(attrIndex), diskDirectory)));
+            }
+
+            for (Future<AttributeColumn> future : futures) {
+                m_attributeColumns.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the attribute columns.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Build the column of the attrIndex-th attribute from its values.
+    // The storage type is detected from the values, unless it is assigned to the attribute.
+    // If diskDirectory is not null, the column is kept in a memory-mapped file in this directory.
+    // Otherwise, the column is copied outside the heap in the off-heap mode.
+    private AttributeColumn buildColumn (int attrIndex, double[] values, File diskDirectory) {
+        AttributeStorageType storageType = AttributeStorageType.detect(values);
+        if (m_requestedStorageTypes != null && m_requestedStorageTypes[attrIndex] != null
+                && m_requestedStorageTypes[attrIndex] != storageType) {
+            AttributeStorageType requestedType = m_requestedStorageTypes[attrIndex];
+            if (requestedType == AttributeStorageType.FLOAT || requestedType.canHold(values)) {
+                storageType = requestedType;
+            } else {
+                System.err.println("Attribute " + attrIndex + " can not be stored as " + requestedType
+                        + ", " + storageType + " is used instead.");
+            }
+        }
+
+        AttributeColumn column = new AttributeColumn(storageType, values, sortByValue(storageType, values));
+        if (diskDirectory != null) {
+            try {
+                column = new MappedAttributeColumn(column, diskDirectory);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to write attribute " + attrIndex + " to " + diskDirectory, e);
+            }
+        }
+        else if (m_offHeap) {
+            column = new OffHeapAttributeColumn(column);
+        }
+        return column;
+    }
+
+    // Construction function of a view of the given training data, in which only the active rows are used in training.
+    // The view shares the attribute columns (including the sorted data) of the given data, which are read-only in
+    // training, while it has its own weights and labels. So, several views can be trained at the same time.
+    // The active rows get the initial weights of activeRows.length instances, and the others get zero weights.
+    protected ExtendedInstances (ExtendedInstances insts, boolean[] activeRows) {
+        this.m_numAttrs = insts.m_numAttrs;
+        this.m_numClasses = insts.m_numClasses;
+        this.m_numInstances = insts.m_numInstances;
+        this.m_attributeColumns = insts.m_attributeColumns;
+        this.m_requestedStorageTypes = insts.m_requestedStorageTypes;
+        this.m_activeRows = activeRows;
+        this.m_offHeap = insts.m_offHeap;
+        this.m_ownsColumns = false;
+
+        for (int i = 0; i < m_numInstances; i++) {
+            if (activeRows[i]) {
+                m_numActiveInstances++;
+            }
+        }
+
+        if (insts.m_offHeapWeights != null) {
+            // The new buffers are filled with zeros, which are the weights of the inactive rows.
+            m_offHeapWeights = new OffHeapLabelWeights(m_numInstances, m_numClasses);
+            for (int i = 0; i < m_numInstances; i++) {
+                m_offHeapWeights.copyLabels(i, insts.m_offHeapWeights);
+                if (activeRows[i]) {
+                    m_offHeapWeights.initWeights(i, m_numActiveInstances);
+                }
+            }
+            return;
+        }
+
+        for (int i = 0; i < m_numInstances; i++) {
+            WeightedMultiLabeledInstance weightedInstance = new WeightedMultiLabeledInstance(insts.m_weightedInstances.get(i));
+            if (activeRows[i]) {
+                weightedInstance.initWeights(m_numActiveInstances);
+            } else {
+                weightedInstance.scaleWeights(0);
+            }
+            m_weightedInstances.add(weightedInstance);
+        }
+    }
+
+    // Create a view of this data, in which only the active rows are used in training.
+    // activeRows[i] is true if the i-th instance is used in training. The view must be closed before this data.
+    public ExtendedInstances createView (boolean[] activeRows) {
+        return new ExtendedInstances(this, activeRows);
+    }
+
+    // Append a batch of new instances to the training data, without sorting all the instances again.
+    // The batch is sorted by each attribute, and then merged into the existing sorted columns linearly.
+    // The new instances get the initial weights of the enlarged data (see WeightedMultiLabeledInstance.initWeights),
+    // while the weights of the existing instances are scaled, so that all the weights still sum to 1 and the existing
+    // instances keep their relative weights.
+    public void append (Instances batch) throws Exception {
+        if (m_activeRows != null) {
+            throw new Exception("Instances can not be appended to a view, whose columns are shared.");
+        }
+        if (isOnDisk()) {
+            throw new Exception("Instances can not be appended to the columns on disk, which are written once.");
+        }
+        if (batch.numAttributes() - 1 != m_numAttrs || batch.numClasses() != m_numClasses) {
+            throw new Exception("The appended instances do not have the same attributes and classes.");
+        }
+
+        int numBatch = batch.numInstances();
+        int numInstances = m_numInstances + numBatch;
+
+        if (m_offHeapWeights != null) {
+            // The rows outside the heap are copied into larger buffers, then the old ones are released.
+            OffHeapLabelWeights offHeapWeights = new OffHeapLabelWeights(numInstances, m_numClasses);
+            for (int i = 0; i < m_numInstances; i++) {
+                offHeapWeights.copyRow(i, m_offHeapWeights);
+                offHeapWeights.scaleWeights(i, (double)m_numInstances / numInstances);
             }
+            for (int i = 0; i < numBatch; i++) {
+                offHeapWeights.setClass(m_numInstances + i, (int)batch.instance(i).classValue());
+                offHeapWeights.initWeights(m_numInstances + i, numInstances);
+            }
+            m_offHeapWeights.close();
+            m_offHeapWeights = offHeapWeights;
         }
+        else {
+            // Renormalize the existing weights
+            for (int i = 0; i < m_numInstances; i++) {
+                m_weightedInstances.get(i).scaleWeights((double)m_numInstances / numInstances);
+            }
 
-        // Ascendingly sort all the attributes array in m_sortedInstances.
+            for (int i = 0; i < numBatch; i++) {
+                m_weightedInstances.add(new WeightedMultiLabeledInstance(batch.instance(i), m_numClasses,
+                        numInstances));
+            }
+        }
+
+        // Merge the batch into the column of each attribute
         for (int j = 0; j < m_numAttrs; j++) {
-            ValueComparator vc = new ValueComparator();
-            ArrayList<Map.Entry<Integer, Double>> attrs = m_sortedInstances.get(j);
-            Collections.sort(attrs, vc);
+            AttributeColumn column = m_attributeColumns.get(j);
+
+            double[] values = new double[numBatch];
+            for (int i = 0; i < numBatch; i++) {
+                values[i] = batch.instance(i).value(j);
+            }
+
+            // Widen the storage type of the column if the new values do not fit in it, the same as "buildColumn":
+            // FLOAT assigned to the attribute rounds the values, while BYTE and SHORT only keep the values they hold.
+            AttributeStorageType storageType = column.getStorageType();
+            boolean forcedFloat = storageType == AttributeStorageType.FLOAT && m_requestedStorageTypes != null
+                    && m_requestedStorageTypes[j] == AttributeStorageType.FLOAT;
+            if (!forcedFloat && !storageType.canHold(values)) {
+                AttributeStorageType batchType = AttributeStorageType.detect(values);
+                if (batchType.ordinal() > storageType.ordinal()) {
+                    if (m_requestedStorageTypes != null && m_requestedStorageTypes[j] == storageType) {
+                        System.err.println("Attribute " + j + " can not be stored as " + storageType
+                                + " any more, " + batchType + " is used instead.");
+                    }
+                    storageType = batchType;
+                }
+            }
+
+            column.append(storageType, values, sortByValue(storageType, values));
+        }
+
+        m_numInstances = numInstances;
+        m_numActiveInstances = numInstances;
+
+        // The bounds are kept for the instances before appending, so start them again.
+        if (m_edgeBounds != null) {
+            m_edgeBounds = new AttributeEdgeBounds(m_numAttrs);
         }
 
         // Check whether the sum of all the weigths equals to 1
-        double weightssum = getSumWeights(m_weightedInstances);
+        double weightssum = getSumWeights();
         if (Math.abs(weightssum - 1.0) > m_DoublePrecision) {
             System.err.println("Sum of weights (" + weightssum + ") != 1!");
         }
     }
 
+    // Reset the weights of all the instances to the initial weights, used to train on the data from scratch.
+    // The bounds were kept for the weights before the reset, so they start again.
+    public void resetWeights () {
+        if (m_edgeBounds != null) {
+            m_edgeBounds = new AttributeEdgeBounds(m_numAttrs);
+        }
+        for (int i = 0; i < m_numInstances; i++) {
+            if (m_activeRows == null || m_activeRows[i]) {
+                if (m_offHeapWeights != null) {
+                    m_offHeapWeights.initWeights(i, m_numActiveInstances);
+                } else {
+                    m_weightedInstances.get(i).initWeights(m_numActiveInstances);
+                }
+            }
+        }
+    }
+
+    // Convert the values to the ones kept by the storage type, and ascendingly sort them.
+    // Returns the positions i of values[i] sorted by the values, and the equal values keep their order (see ColumnSorter).
+    // The value is the one kept by the storage type, so that the sorted order and the thresholds are consistent with
+    // the values used in the classification.
+    private int[] sortByValue (AttributeStorageType storageType, double[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = AttributeColumn.toStoredValue(storageType, values[i]);
+        }
+
+        return ColumnSorter.sort(storageType, values);
+    }
+
+    // Drop the weights smaller than tolerance times the initial weight of a negative label 1/(2*n*(K-1)) (see
+    // WeightedMultiLabeledInstance.initWeights), used in the sparse class mode when there are many classes, most of
+    // whose weights quickly become negligible. The kept weights are scaled to sum to 1.
+    // Returns the number of the kept weights.
+    // All the classes are kept outside the heap, so the dropped weights are set to zero there instead, and the stump
+    // search skips them (see StumpAlgorithm.initSparseEntries). The weights are the same as in the heap.
+    public long dropSmallWeights (double tolerance) {
+        double minWeight = tolerance / (2.0 * m_numActiveInstances * Math.max(1, m_numClasses - 1));
+        if (m_offHeapWeights != null) {
+            return dropSmallOffHeapWeights(minWeight);
+        }
+
+        double sumKept = 0;
+        for (WeightedMultiLabeledInstance weightedInstance : m_weightedInstances) {
+            sumKept += weightedInstance.dropWeights(minWeight);
+        }
+
+        long numKept = 0;
+        for (WeightedMultiLabeledInstance weightedInstance : m_weightedInstances) {
+            if (sumKept > 0) {
+                weightedInstance.scaleWeights(1.0 / sumKept);
+            }
+            numKept += weightedInstance.getWeights().length;
+        }
+        return numKept;
+    }
+
+    // The same as "dropSmallWeights" outside the heap: the weights below minWeight are set to zero.
+    private long dropSmallOffHeapWeights (double minWeight) {
+        double sumKept = 0;
+        long numKept = 0;
+        for (int i = 0; i < m_numInstances; i++) {
+            // The kept weights are summed row by row, the same as WeightedMultiLabeledInstance.dropWeights.
+            double rowSumKept = 0;
+            for (int l = 0; l < m_numClasses; l++) {
+                double weight = m_offHeapWeights.getWeight(i, l);
+                if (weight >= minWeight) {
+                    rowSumKept += weight;
+                    numKept++;
+                } else if (weight != 0) {
+                    m_offHeapWeights.setWeight(i, l, 0);
+                }
+            }
+            sumKept += rowSumKept;
+        }
+
+        if (sumKept > 0) {
+            for (int i = 0; i < m_numInstances; i++) {
+                m_offHeapWeights.scaleWeights(i, 1.0 / sumKept);
+            }
+        }
+        return numKept;
+    }
+
     // Get the sum of all the weigths
     public double getSumWeights (ArrayList<WeightedMultiLabeledInstance> instances) {
         double weightssum = 0.0;
 
         for (int i = 0; i < m_numInstances; i++)
-            for (int j = 0; j < m_numClasses; j++) {
+            for (int j = 0; j < instances.get(i).getWeights().length; j++) {
                 weightssum += instances.get(i).getWeights()[j];
         }
 
         return weightssum;
     }
 
+    // Get the sum of all the weigths of this data
+    public double getSumWeights () {
+        if (m_offHeapWeights == null) {
+            return getSumWeights(m_weightedInstances);
+        }
+
+        double weightssum = 0.0;
+        for (int i = 0; i < m_numInstances; i++) {
+            for (int l = 0; l < m_numClasses; l++) {
+                weightssum += m_offHeapWeights.getWeight(i, l);
+            }
+        }
+        return weightssum;
+    }
+
+    // get the attrIndex-th attribute value of the index-th instance
+    public double getAttrValue (int index, int attrIndex) {
+        return m_attributeColumns.get(attrIndex).value(index);
+    }
+
     // get the attributes array of the index-th instance
+    // The array is gathered from all the attribute columns, so use "getAttrValue" if only one value is needed.
     public double[] getAttrValues (int index) {
-        return m_weightedInstances.get(index).getAttrValues();
+        return getAttrValues(index, new double[m_numAttrs]);
+    }
+
+    // Gather the attributes of the index-th instance into the given array, which is reused across the instances.
+    public double[] getAttrValues (int index, double[] attrValues) {
+        for (int j = 0; j < m_numAttrs; j++) {
+            attrValues[j] = m_attributeColumns.get(j).value(index);
+        }
+        return attrValues;
+    }
+
+    // get the classes of the labels and weights of the index-th instance, or null if all the classes are kept
+    public int[] getClasses (int index) {
+        return (m_offHeapWeights != null) ? null : m_weightedInstances.get(index).getClasses();
+    }
+
+    // The indexed accessors of the weights and labels, which work both in the heap and outside it.
+    // The a-th entry of the index-th instance belongs to the class "getEntryClass(index, a)". All the classes are kept
+    // unless the sparse class mode drops some of them (see "dropSmallWeights").
+
+    // get the number of the weights/labels kept for the index-th instance
+    public int numEntries (int index) {
+        return (m_offHeapWeights != null) ? m_numClasses : m_weightedInstances.get(index).getWeights().length;
+    }
+
+    // get the class of the a-th weight/label of the index-th instance
+    public int getEntryClass (int index, int a) {
+        int[] classes = getClasses(index);
+        return (classes == null) ? a : classes[a];
+    }
+
+    // get the a-th weight of the index-th instance
+    public double getWeight (int index, int a) {
+        return (m_offHeapWeights != null) ? m_offHeapWeights.getWeight(index, a)
+                : m_weightedInstances.get(index).getWeights()[a];
+    }
+
+    // set the a-th weight of the index-th instance. The change of the product w_{i,l}y_{i,l} is added to the bounds.
+    public void setWeight (int index, int a, double weight) {
+        if (m_edgeBounds != null) {
+            m_edgeBounds.addWeightChange(Math.abs((weight - getWeight(index, a)) * getLabel(index, a)));
+        }
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.setWeight(index, a, weight);
+        } else {
+            m_weightedInstances.get(index).getWeights()[a] = weight;
+        }
+    }
+
+    // get the a-th label of the index-th instance
+    public int getLabel (int index, int a) {
+        return (m_offHeapWeights != null) ? m_offHeapWeights.getLabel(index, a)
+                : m_weightedInstances.get(index).getLabels()[a];
+    }
+
+    // set the a-th label of the index-th instance. The change of the product w_{i,l}y_{i,l}, and of its distance to
+    // the saved label, are added to the bounds.
+    public void setLabel (int index, int a, int label) {
+        if (m_edgeBounds != null) {
+            double weight = getWeight(index, a);
+            int oldLabel = getLabel(index, a);
+            double labelDistanceChange = 0;
+            if (m_savedLabels != null || m_savedOffHeapLabels != null) {
+                int savedLabel = (m_savedOffHeapLabels != null)
+                        ? m_offHeapWeights.getSavedLabel(m_savedOffHeapLabels, index, a) : m_savedLabels.get(index)[a];
+                labelDistanceChange = weight * (Math.abs(label - savedLabel) - Math.abs(oldLabel - savedLabel));
+            }
+            m_edgeBounds.addLabelChange(Math.abs(weight * (label - oldLabel)), labelDistanceChange);
+        }
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.setLabel(index, a, label);
+        } else {
+            m_weightedInstances.get(index).getLabels()[a] = label;
+        }
+    }
+
+    // Step over the index-th instance in the split scan: edges[l] -= w_{i,l}y_{i,l} for all the K classes.
+    // The rows in the heap are given to the kernels, while the rows outside the heap are read in place.
+    public void subtractEdges (EdgeKernels kernels, double[] edges, int index) {
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.subtractEdges(edges, index);
+        } else {
+            WeightedMultiLabeledInstance weightedInstance = m_weightedInstances.get(index);
+            kernels.subtractEdges(edges, weightedInstance.getWeights(), weightedInstance.getLabels(), m_numClasses);
+        }
+    }
+
+    // Add the index-th instance to the class-wise sums of weights and initial edges, for all the K classes.
+    public void addWeightsAndEdges (EdgeKernels kernels, double[] weightsPerClass, double[] edges, int index) {
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.addWeightsAndEdges(weightsPerClass, edges, index);
+        } else {
+            WeightedMultiLabeledInstance weightedInstance = m_weightedInstances.get(index);
+            kernels.addWeightsAndEdges(weightsPerClass, edges, weightedInstance.getWeights(),
+                    weightedInstance.getLabels(), m_numClasses);
+        }
+    }
+
+    // Keep a copy of the labels of all the instances, which are restored by "restoreLabels". It is used by
+    // ProductLearner, which modifies the labels while it builds its base learners.
+    public void saveLabels () {
+        if (m_edgeBounds != null) {
+            m_edgeBounds.labelsSaved();
+        }
+        if (m_offHeapWeights != null) {
+            m_savedOffHeapLabels = m_offHeapWeights.saveLabels();
+            return;
+        }
+
+        m_savedLabels = new ArrayList<>(m_numInstances);
+        for (int i = 0; i < m_numInstances; i++) {
+            // only the kept classes in the sparse class mode
+            m_savedLabels.add(m_weightedInstances.get(i).getLabels().clone());
+        }
+    }
+
+    // Restore the labels kept by "saveLabels", and drop the copy.
+    public void restoreLabels () {
+        if (m_edgeBounds != null) {
+            m_edgeBounds.labelsRestored();
+        }
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.restoreLabels(m_savedOffHeapLabels);
+            m_savedOffHeapLabels = null;
+            return;
+        }
+
+        for (int i = 0; i < m_numInstances; i++) {
+            int[] originalLabels = m_savedLabels.get(i);
+            System.arraycopy(originalLabels, 0, m_weightedInstances.get(i).getLabels(), 0, originalLabels.length);
+        }
+        m_savedLabels = null;
+    }
+
+    // get the index-th attribute column, which contains the sorted data by this attribute
+    public AttributeColumn getColumn (int index) {
+        return m_attributeColumns.get(index);
+    }
+
+    // Load the index-th attribute column before it is scanned, which reads ahead the columns on disk.
+    public void prefetchColumn (int index) {
+        if (index < m_numAttrs) {
+            m_attributeColumns.get(index).prefetch();
+        }
+    }
+
+    // Whether the attribute columns are kept on disk
+    public boolean isOnDisk () {
+        return m_numAttrs > 0 && m_attributeColumns.get(0).isOnDisk();
+    }
+
+    // get the number of bytes used by all the attribute columns in the heap
+    public long columnsMemoryInBytes () {
+        long bytes = 0;
+        for (AttributeColumn column : m_attributeColumns) {
+            bytes += column.memoryInBytes();
+        }
+        return bytes;
+    }
+
+    // Whether the training data is kept outside the heap
+    public boolean isOffHeap () { return m_offHeap; }
+
+    // get the number of bytes of the direct buffers used by the weights, the labels and the attribute columns
+    public long offHeapBytes () {
+        long bytes = (m_offHeapWeights == null) ? 0 : m_offHeapWeights.offHeapBytes();
+        if (m_ownsColumns) {
+            for (AttributeColumn column : m_attributeColumns) {
+                bytes += column.offHeapBytes();
+            }
+        }
+        return bytes;
     }
 
-    // get the labels array of the index-th instance
-    public int[] getLabels (int index) {
-        return m_weightedInstances.get(index).getLabels();
+    // Release the memory outside the heap (and the files on disk) used by this data, which must not be used any more.
+    // A view only releases its own weights and labels, since its columns belong to the data it was created from.
+    public void close () {
+        if (m_offHeapWeights != null) {
+            m_offHeapWeights.close();
+            m_offHeapWeights = null;
+        }
+        if (m_savedOffHeapLabels != null) {
+            for (ByteBuffer buffer : m_savedOffHeapLabels) {
+                DirectBuffers.free(buffer);
+            }
+            m_savedOffHeapLabels = null;
+        }
+        if (m_ownsColumns) {
+            for (AttributeColumn column : m_attributeColumns) {
+                column.close();
+            }
+            m_attributeColumns.clear();
+        }
     }
 
-    // get the weights array of the index-th instance
-    public double[] getWeights (int index) {
-        return m_weightedInstances.get(index).getWeights();
+    // Enable the pruning of attributes in the stump search, which keeps the bounds of the attributes from now on.
+    public void enableEdgeBounds () {
+        if (m_edgeBounds == null) {
+            m_edgeBounds = new AttributeEdgeBounds(m_numAttrs);
+        }
     }
 
-    // get the index-th sorted attributes ArrayList
-    public ArrayList<Map.Entry<Integer, Double>> getSortedAttrsByIndex (int index) {
-        return m_sortedInstances.get(index);
+    // get the bounds of the best half edges of all the attributes, or null if the pruning is disabled
+    public AttributeEdgeBounds getEdgeBounds () { return m_edgeBounds; }
+
+    // Enable the adaptive pruning of attributes in the stump search (see AttributeActivity).
+    public void enableAttributeActivity (int patience, double ratio, int recheckPeriod) {
+        m_attributeActivity = new AttributeActivity(m_numAttrs, patience, ratio, recheckPeriod);
     }
 
+    // get the activity of the attributes, or null if the adaptive pruning is disabled
+    public AttributeActivity getAttributeActivity () { return m_attributeActivity; }
+
+    // Restrict the stump search to the attributes whose element is true, or to all the attributes if it is null.
+    public void setAttributeSample (boolean[] attributeSample) { m_attributeSample = attributeSample; }
+
+    // Whether the given attribute is searched by the stump search
+    public boolean isSampled (int attrIndex) { return m_attributeSample == null || m_attributeSample[attrIndex]; }
+
+    // Mark whether the labels are currently the virtual labels modified in ProductLearner.
+    public void setVirtualLabels (boolean virtualLabels) { m_virtualLabels = virtualLabels; }
+
+    // Whether the labels are currently the virtual labels modified in ProductLearner.
+    public boolean isVirtualLabels () { return m_virtualLabels; }
+
+    // Enable the sparse class mode, see "dropSmallWeights".
+    public void setSparseClasses (boolean sparseClasses) { m_sparseClasses = sparseClasses; }
+
+    // Whether the instances only keep the classes whose weights are not negligible.
+    public boolean isSparseClasses () { return m_sparseClasses; }
+
     // get the number of attributes
     public int numAttributes () { return m_numAttrs; }
 
@@ -112,15 +858,9 @@ public class ExtendedInstances {
     // get the number of instances
     public int numInstances () { return m_numInstances; }
 
-    // A comparator used to compare the attribute value in the map.
-    // The sorting is ascending by the attribute values.
-    private class ValueComparator implements Comparator<Map.Entry<Integer, Double>>
-    {
-        public int compare(Map.Entry<Integer, Double> mp1, Map.Entry<Integer, Double> mp2)
-        {
-            // Would throw exception if I use: return (int)(mp1.getValue() - mp2.getValue()); here.
-            // Would get wrong result if I use: return (mp1.getValue()).toString().compareTo(mp2.getValue().toString());
-            return (new Double(mp1.getValue())).compareTo(new Double(mp2.getValue()));
-        }
-    }
+    // get the number of instances used in training
+    public int numActiveInstances () { return m_numActiveInstances; }
+
+    // get the rows used in training, or null if all the instances are used
+    public boolean[] getActiveRows () { return m_activeRows; }
 }
@@ -0,0 +1,368 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+// This is a Class to score instances with Java code generated from a trained AdaBoostMH model, used for the lowest
+// latency. The terms of the model become straight-line code compiled in memory with javax.tools:
+//   if ((x[12] > 0.5) ^ (x[3] > 1.25)) { s0 -= 0.731; s1 += 0.731; ... } else { s0 += 0.731; s1 -= 0.731; ... }
+// so the thresholds and \alpha are constants, the scores are local variables, and there is no loop nor array of the
+// model left for the JIT. The terms are added to each score in the same order as AdaBoostMH.distributionForInstance,
+// and each of them is exactly +/-\alpha there, so the distributions are exactly the same.
+// HotSpot does not compile the methods bigger than 8000 bytes of bytecode, so the terms are split into small methods,
+// which load the scores into local variables and store them back.
+public class GeneratedScorer {
+    // The generated code, which adds the terms of the model to the scores: accept(instance, scores)
+    protected BiConsumer<double[], double[]> m_terms;
+
+    protected int m_numClasses;
+    protected int m_numTerms;
+
+    // The generated source code and the time to generate and compile it in milliseconds
+    protected String m_source;
+    protected long m_compileMillis;
+
+    // The sum of the scored probabilities in "printReport", kept so the JIT can not skip the scoring
+    protected double m_benchmarkChecksum;
+
+    // Approximate bytecode budget of a generated method, below the 8000 bytes that HotSpot compiles
+    private static final int METHOD_BYTES = 6000;
+    // Maximum number of calls in a generated method which calls the methods of the terms
+    private static final int CALLS_PER_METHOD = 500;
+
+    private static final AtomicInteger s_numClasses = new AtomicInteger();
+
+    // Generate and compile the scorer of the given trained model. It needs a JDK, and the model must not use the sparse
+    // class mode, whose scores are summed in another order.
+    @SuppressWarnings("unchecked")
+    public GeneratedScorer (AdaBoostMH booster, int numClasses) throws Exception {
+        if (booster.getNumIterationsPerformed() == 0) {
+            throw new Exception("No model built");
+        }
+        if (booster.getSparseClassTolerance() > 0) {
+            throw new Exception("The sparse class mode is not supported by the generated scorer.");
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new Exception("No Java compiler is available, run with a JDK to generate the scorer.");
+        }
+
+        long start = System.currentTimeMillis();
+        m_numClasses = numClasses;
+        m_numTerms = booster.getNumIterationsPerformed();
+        String className = "GeneratedAdaBoostMH" + s_numClasses.incrementAndGet();
+        m_source = generateSource(className, booster, numClasses);
+
+        // Compile the source in memory, and keep the class files in memory as well.
+        Map<String, ByteArrayOutputStream> classFiles = new HashMap<>();
+        StandardJavaFileManager standardManager = compiler.getStandardFileManager(null, null, null);
+        JavaFileManager fileManager = new ForwardingJavaFileManager<JavaFileManager>(standardManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput (Location location, String name, JavaFileObject.Kind kind,
+                                                        FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + name.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream () {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classFiles.put(name, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        String source = m_source;
+        JavaFileObject sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className + ".java"),
+                JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent (boolean ignoreEncodingErrors) { return source; }
+        };
+
+        StringWriter errors = new StringWriter();
+        Boolean compiled = compiler.getTask(errors, fileManager, null, Arrays.asList("-g:none", "-proc:none"), null,
+                Collections.singletonList(sourceFile)).call();
+        fileManager.close();
+        if (compiled == null || !compiled) {
+            throw new Exception("Failed to compile the generated scorer:\n" + errors);
+        }
+
+        ClassLoader loader = new ClassLoader(GeneratedScorer.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass (String name) throws ClassNotFoundException {
+                ByteArrayOutputStream classFile = classFiles.get(name);
+                if (classFile == null) {
+                    return super.findClass(name);
+                }
+                byte[] bytes = classFile.toByteArray();
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        };
+        m_terms = (BiConsumer<double[], double[]>)loader.loadClass(className).getDeclaredConstructor().newInstance();
+        m_compileMillis = System.currentTimeMillis() - start;
+    }
+
+    // Generate the source code of the class which adds the terms of the model to the scores.
+    protected static String generateSource (String className, AdaBoostMH booster, int numClasses) {
+        int numTerms = booster.getNumIterationsPerformed();
+
+        // Split the terms into methods of about METHOD_BYTES bytes of bytecode.
+        // Loading and storing the scores cost about 16 bytes per class in each method.
+        ArrayList<StringBuilder> methods = new ArrayList<>();
+        StringBuilder method = null;
+        int methodBytes = 0;
+        int numMethodTerms = 0;
+        for (int t = 0; t < numTerms; t++) {
+            BaseLearner baseLearner = booster.getBaseLearner(t);
+
+            ArrayList<BaseLearner> factors = new ArrayList<>();
+            if (baseLearner instanceof ProductLearner) {
+                ProductLearner product = (ProductLearner)baseLearner;
+                for (int ib = 0; ib < product.getNumBaseLearners(); ib++) {
+                    factors.add(product.getBaseLearner(ib));
+                }
+            }
+            else {
+                factors.add(baseLearner);
+            }
+
+            // A term costs about 12 bytes per stump, and 8 bytes per class in each branch.
+            int termBytes = 12 * factors.size() + 16 * numClasses + 8;
+            if (method == null || (methodBytes + termBytes > METHOD_BYTES && numMethodTerms > 0)) {
+                method = new StringBuilder();
+                methods.add(method);
+                methodBytes = 16 * numClasses;
+                numMethodTerms = 0;
+            }
+            methodBytes += termBytes;
+            numMethodTerms++;
+
+            // \Phi(x) = \prod_{b}\varphi_b(x) is +1 if an even number of the stumps are -1, that is if the number of
+            // the stumps which are +1 has the same parity as the number of stumps.
+            StringBuilder positive = new StringBuilder();
+            for (int b = 0; b < factors.size(); b++) {
+                if (b > 0) {
+                    positive.append(" ^ ");
+                }
+                positive.append("(x[").append(factors.get(b).getSelectedAttr()).append("] > ")
+                        .append(literal(factors.get(b).getThreshold())).append(")");
+            }
+            method.append("        if (").append(factors.size() % 2 == 1 ? positive : "!(" + positive + ")")
+                    .append(") {\n");
+
+            // c_l = \prod_{b}v^{(b)}_l, so the term is +/-\alpha, and s + (-\alpha) is the same as s - \alpha.
+            String alpha = literal(baseLearner.getAlpha());
+            double[] votes = new double[numClasses];
+            Arrays.fill(votes, 1);
+            for (BaseLearner factor : factors) {
+                double[] v = factor.getVoteVector();
+                for (int l = 0; l < numClasses; l++) {
+                    votes[l] *= v[l];
+                }
+            }
+            appendVotes(method, votes, alpha, false);
+            method.append("        } else {\n");
+            appendVotes(method, votes, alpha, true);
+            method.append("        }\n");
+        }
+
+        StringBuilder source = new StringBuilder();
+        source.append("public final class ").append(className)
+                .append(" implements java.util.function.BiConsumer<double[], double[]> {\n");
+
+        // Each method of the terms adds its terms to the scores kept in local variables.
+        for (int m = 0; m < methods.size(); m++) {
+            source.append("    private static void terms").append(m).append("(double[] x, double[] s) {\n");
+            for (int l = 0; l < numClasses; l++) {
+                source.append("        double s").append(l).append(" = s[").append(l).append("];\n");
+            }
+            source.append(methods.get(m));
+            for (int l = 0; l < numClasses; l++) {
+                source.append("        s[").append(l).append("] = s").append(l).append(";\n");
+            }
+            source.append("    }\n");
+        }
+
+        // The methods of the terms are called in order, CALLS_PER_METHOD at a time.
+        int numGroups = (methods.size() + CALLS_PER_METHOD - 1) / CALLS_PER_METHOD;
+        for (int g = 0; g < numGroups; g++) {
+            source.append("    private static void group").append(g).append("(double[] x, double[] s) {\n");
+            for (int m = g * CALLS_PER_METHOD; m < Math.min(methods.size(), (g + 1) * CALLS_PER_METHOD); m++) {
+                source.append("        terms").append(m).append("(x, s);\n");
+            }
+            source.append("    }\n");
+        }
+        source.append("    public void accept(double[] x, double[] s) {\n");
+        for (int g = 0; g < numGroups; g++) {
+            source.append("        group").append(g).append("(x, s);\n");
+        }
+        source.append("    }\n");
+        source.append("}\n");
+        return source.toString();
+    }
+
+    // Add (or subtract if the term is negative) \alpha to the score of each class whose vote is +1, and the opposite to
+    // the other classes.
+    private static void appendVotes (StringBuilder method, double[] votes, String alpha, boolean negative) {
+        for (int l = 0; l < votes.length; l++) {
+            boolean add = (votes[l] > 0) != negative;
+            method.append("            s").append(l).append(add ? " += " : " -= ").append(alpha).append(";\n");
+        }
+    }
+
+    // A Java literal of the given value, which is parsed back to exactly the same value.
+    private static String literal (double value) {
+        if (Double.isNaN(value)) {
+            return "Double.NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        // Double.toString gives enough digits to tell the value from the adjacent doubles.
+        return "(" + Double.toString(value) + ")";
+    }
+
+    // Compute the scores f_l(x) of the given instance represented by a double array.
+    public double[] scores (double[] testInst) {
+        double[] scores = new double[m_numClasses];
+        m_terms.accept(testInst, scores);
+        return scores;
+    }
+
+    // The probability distribution of the given instance, computed the same way as AdaBoostMH.distributionForInstance.
+    public double[] distributionForInstance (Instance instance) {
+        return distributionForInstance(instance.toDoubleArray());
+    }
+
+    // The probability distribution of the given instance represented by a double array.
+    public double[] distributionForInstance (double[] testInst) {
+        double[] classification = scores(testInst);
+        for (int l = 0; l < m_numClasses; l++) {
+            classification[l] = Math.exp(classification[l]);
+        }
+        Utils.normalize(classification, Utils.sum(classification));
+        return classification;
+    }
+
+    public int numTerms () { return m_numTerms; }
+
+    public String getSource () { return m_source; }
+
+    public long getCompileMillis () { return m_compileMillis; }
+
+    // Check that the distributions of the generated scorer are exactly the ones of the model on the given data, and
+    // print the latencies of both per instance.
+    public void printReport (AdaBoostMH booster, Instances data, int numRepeats) throws Exception {
+        double[][] rows = new double[data.numInstances()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = data.instance(i).toDoubleArray();
+        }
+
+        int numDifferent = 0;
+        for (double[] row : rows) {
+            if (!Arrays.equals(booster.distributionForInstance(row, m_numClasses), distributionForInstance(row))) {
+                numDifferent++;
+            }
+        }
+
+        // The first half of the repeats warms up the JIT, and the second half is timed.
+        long interpretedNanos = 0;
+        long generatedNanos = 0;
+        double checksum = 0;
+        for (int r = 0; r < 2 * numRepeats; r++) {
+            long start = System.nanoTime();
+            for (double[] row : rows) {
+                checksum += booster.distributionForInstance(row, m_numClasses)[0];
+            }
+            long middle = System.nanoTime();
+            for (double[] row : rows) {
+                checksum += distributionForInstance(row)[0];
+            }
+            long end = System.nanoTime();
+            if (r >= numRepeats) {
+                interpretedNanos += middle - start;
+                generatedNanos += end - middle;
+            }
+        }
+
+        long numScored = Math.max(1L, (long)numRepeats * rows.length);
+        double interpreted = (double)interpretedNanos / numScored;
+        double generated = (double)generatedNanos / numScored;
+        System.out.println("Terms: " + m_numTerms + ", generated " + m_source.length() + " characters of source in "
+                + m_compileMillis + " ms");
+        System.out.println("Distributions: " + numDifferent + " of " + rows.length + " different from the model");
+        System.out.println("Latency: " + String.format("%.0f", interpreted) + " ns -> "
+                + String.format("%.0f", generated) + " ns per instance ("
+                + String.format("%.1f", interpreted / Math.max(generated, 1e-9)) + "x)");
+        m_benchmarkChecksum = checksum;
+    }
+
+    // Usage: GeneratedScorer -t <train arff> -T <test arff> [-I 100] [-M 3] [-r 20] [-source <java file>]
+    // -r is the number of timed passes over the test data. -source also writes the generated code.
+    public static void main(String[] argv) throws Exception {
+        String trainFile = null;
+        String testFile = null;
+        String sourceFile = null;
+        int numRepeats = 20;
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setPrintProgress(false);
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": trainFile = argv[++i]; break;
+                case "-T": testFile = argv[++i]; break;
+                case "-I": booster.setI(Integer.parseInt(argv[++i])); break;
+                case "-M": booster.setM(Integer.parseInt(argv[++i])); break;
+                case "-r": numRepeats = Integer.parseInt(argv[++i]); break;
+                case "-source": sourceFile = argv[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (trainFile == null || testFile == null) {
+            System.err.println("Usage: GeneratedScorer -t <train arff> -T <test arff> [-I 100] [-M 3] [-r 20]"
+                    + " [-source <java file>]");
+            return;
+        }
+
+        Instances train = new Instances(new BufferedReader(new FileReader(trainFile)));
+        train.setClassIndex(train.numAttributes() - 1);
+        Instances test = new Instances(new BufferedReader(new FileReader(testFile)));
+        test.setClassIndex(test.numAttributes() - 1);
+
+        booster.initializeClassifier(train);
+        while (booster.next()) {
+            // Train all the iterations without printing the base learners.
+        }
+        booster.done();
+
+        GeneratedScorer scorer = new GeneratedScorer(booster, train.numClasses());
+        if (sourceFile != null) {
+            Files.write(Paths.get(sourceFile), scorer.getSource().getBytes(StandardCharsets.UTF_8));
+        }
+        scorer.printReport(booster, test, numRepeats);
+    }
+}
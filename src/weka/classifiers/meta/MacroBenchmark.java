@@ -0,0 +1,353 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+// This is a Class of an end-to-end benchmark of AdaBoostMH on synthetic data sets with the same shapes as the data
+// sets in the experiments (rows, attributes, classes, value types and sparsity), so it runs offline and the results can
+// be tracked over time. Each data set is generated deterministically from a seed. For each data set and each M, one
+// boosting run is evaluated at each I (see MultiHorizonEvaluation), and the following are recorded in a TSV report:
+// time per iteration, scoring throughput, peak heap, peak RSS and GC time. A report can be compared with a baseline
+// report, and the slower or changed results are flagged as regressions.
+public class MacroBenchmark {
+    // Shapes of the data sets
+    public enum Shape {
+        //         train  test   attrs classes kind             min max  zeros
+        PENDIGITS(  7494, 3498,   16,   10,    ValueKind.INTEGER,  0, 100, 0.0),
+        LETTER(    16000, 4000,   16,   26,    ValueKind.INTEGER,  0,  15, 0.0),
+        ISOLET(     6238, 1559,  617,   26,    ValueKind.REAL,    -1,   1, 0.0),
+        USPS(       7291, 2007,  256,   10,    ValueKind.REAL,    -1,   1, 0.0),
+        MNIST(     60000, 10000, 784,   10,    ValueKind.INTEGER,  0, 255, 0.81);
+
+        final int numTrain;
+        final int numTest;
+        final int numAttrs;
+        final int numClasses;
+        final ValueKind kind;
+        final double min;
+        final double max;
+        final double zeroFraction;          // Average fraction of zeros of an attribute, such as the MNIST background
+
+        Shape (int numTrain, int numTest, int numAttrs, int numClasses, ValueKind kind,
+               double min, double max, double zeroFraction) {
+            this.numTrain = numTrain;
+            this.numTest = numTest;
+            this.numAttrs = numAttrs;
+            this.numClasses = numClasses;
+            this.kind = kind;
+            this.min = min;
+            this.max = max;
+            this.zeroFraction = zeroFraction;
+        }
+    }
+
+    // Integers in [min, max], or reals in [min, max] with 4 decimals as in the ARFF files.
+    public enum ValueKind { INTEGER, REAL }
+
+    // Columns of the report
+    protected static final String[] COLUMNS = {"dataset", "I", "M", "iterations", "error", "train_s", "s_per_iter",
+            "score_rows_per_s", "peak_heap_mb", "peak_rss_mb", "gc_s"};
+
+    // Fraction of the rows of each data set to generate, used for quick runs.
+    protected double m_scale = 1.0;
+
+    protected long m_seed = 1;
+
+    protected int[] m_Is = {10, 100};
+    protected int[] m_Ms = {1, 3};
+
+    // The results, each of which is a row of the report
+    protected List<String[]> m_results = new ArrayList<>();
+
+    public void setScale (double scale) { m_scale = scale; }
+    public void setSeed (long seed) { m_seed = seed; }
+    public void setIs (int[] Is) {
+        m_Is = Is.clone();
+        Arrays.sort(m_Is);
+    }
+    public void setMs (int[] Ms) { m_Ms = Ms.clone(); }
+
+    // Generate the training and test data of the given shape. Each class has a random center, and the values of an
+    // instance are its class center plus a Gaussian noise, mapped into the value range of the shape. An attribute is
+    // zero with a probability depending on the attribute and the class, whose average is the zero fraction.
+    public Instances[] generate (Shape shape) {
+        Random random = new Random(m_seed * 31 + shape.ordinal());
+
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j = 0; j < shape.numAttrs; j++) {
+            attributes.add(new Attribute("a" + j));
+        }
+        ArrayList<String> classValues = new ArrayList<>();
+        for (int c = 0; c < shape.numClasses; c++) {
+            classValues.add("c" + c);
+        }
+        attributes.add(new Attribute("class", classValues));
+
+        double[][] centers = new double[shape.numClasses][shape.numAttrs];
+        double[][] zeroProbabilities = new double[shape.numClasses][shape.numAttrs];
+        for (int c = 0; c < shape.numClasses; c++) {
+            for (int j = 0; j < shape.numAttrs; j++) {
+                centers[c][j] = random.nextGaussian();
+                zeroProbabilities[c][j] = Math.min(1, 2 * shape.zeroFraction * random.nextDouble());
+            }
+        }
+
+        Instances[] data = new Instances[2];
+        int[] sizes = {shape.numTrain, shape.numTest};
+        for (int d = 0; d < 2; d++) {
+            int numInstances = Math.max(shape.numClasses, (int)Math.round(sizes[d] * m_scale));
+            data[d] = new Instances(shape.name().toLowerCase() + (d == 0 ? "-train" : "-test"), attributes,
+                    numInstances);
+            data[d].setClassIndex(shape.numAttrs);
+
+            for (int i = 0; i < numInstances; i++) {
+                int c = random.nextInt(shape.numClasses);
+                double[] values = new double[shape.numAttrs + 1];
+                for (int j = 0; j < shape.numAttrs; j++) {
+                    if (random.nextDouble() < zeroProbabilities[c][j]) {
+                        continue;
+                    }
+                    // Map the Gaussian value into [min, max] by a sigmoid.
+                    double x = centers[c][j] + 1.5 * random.nextGaussian();
+                    double value = shape.min + (shape.max - shape.min) / (1 + Math.exp(-x));
+                    values[j] = (shape.kind == ValueKind.INTEGER)
+                            ? Math.rint(value) : Math.rint(value * 10000) / 10000;
+                }
+                values[shape.numAttrs] = c;
+                data[d].add(new DenseInstance(1, values));
+            }
+        }
+        return data;
+    }
+
+    // Run all the combinations of I and M on the given data sets.
+    public void run (List<Shape> shapes) throws Exception {
+        for (Shape shape : shapes) {
+            Instances[] data = generate(shape);
+            for (int M : m_Ms) {
+                runOne(shape, data[0], data[1], M);
+            }
+        }
+    }
+
+    // Train AdaBoostMH with the given M once, and record the results at each I.
+    protected void runOne (Shape shape, Instances train, Instances test, int M) throws Exception {
+        System.gc();
+        resetPeaks();
+        long gcStart = gcMillis();
+
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setM(M);
+        booster.setPrintProgress(false);
+        MultiHorizonEvaluation evaluation = new MultiHorizonEvaluation(booster, m_Is);
+        evaluation.evaluate(train, test);
+
+        // Scoring throughput of the final model
+        double[][] testInsts = new double[test.numInstances()][];
+        for (int i = 0; i < testInsts.length; i++) {
+            testInsts[i] = test.instance(i).toDoubleArray();
+        }
+        long start = System.nanoTime();
+        for (double[] testInst : testInsts) {
+            booster.distributionForInstance(testInst, test.numClasses());
+        }
+        double scoreSeconds = (System.nanoTime() - start) / 1e9;
+
+        double gcSeconds = (gcMillis() - gcStart) / 1000.0;
+        double peakHeapMB = peakHeapBytes() / 1048576.0;
+        long peakRss = peakRssBytes();
+        double peakRssMB = peakRss < 0 ? -1 : peakRss / 1048576.0;
+
+        for (int h = 0; h < m_Is.length; h++) {
+            int iterations = evaluation.getNumIterations()[h];
+            double trainSeconds = evaluation.getTrainingSeconds()[h];
+            String[] result = {shape.name().toLowerCase(), Integer.toString(m_Is[h]), Integer.toString(M),
+                    Integer.toString(iterations), String.format("%.6f", evaluation.getErrorRates()[h]),
+                    String.format("%.3f", trainSeconds), String.format("%.6f", trainSeconds / Math.max(1, iterations)),
+                    String.format("%.1f", testInsts.length / Math.max(scoreSeconds, 1e-9)),
+                    String.format("%.1f", peakHeapMB), String.format("%.1f", peakRssMB), String.format("%.3f", gcSeconds)};
+            m_results.add(result);
+            System.out.println(String.join("\t", result));
+        }
+    }
+
+    // Reset the peak usage of the heap pools, and the peak RSS if the operating system allows it (Linux).
+    private static void resetPeaks () {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+        try (FileWriter clearRefs = new FileWriter("/proc/self/clear_refs")) {
+            clearRefs.write("5");
+        } catch (IOException e) {
+            // The peak RSS is the one of the whole process.
+        }
+    }
+
+    // The sum of the peak usage of the heap pools
+    private static long peakHeapBytes () {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes;
+    }
+
+    // The peak resident set size (VmHWM) on Linux, or -1 if it is unknown.
+    private static long peakRssBytes () {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    // The total time of the garbage collections
+    private static long gcMillis () {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Write the report. The lines starting with '#' describe the environment.
+    public void writeReport (File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+            writer.println("# java=" + System.getProperty("java.version") + " cores="
+                    + Runtime.getRuntime().availableProcessors() + " maxHeapMB="
+                    + Runtime.getRuntime().maxMemory() / 1048576 + " scale=" + m_scale + " seed=" + m_seed);
+            writer.println(String.join("\t", COLUMNS));
+            for (String[] result : m_results) {
+                writer.println(String.join("\t", result));
+            }
+        }
+    }
+
+    // Read a report as rows keyed by "dataset I M".
+    protected static HashMap<String, String[]> readReport (File file) throws IOException {
+        HashMap<String, String[]> rows = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.startsWith(COLUMNS[0]) || line.trim().isEmpty()) {
+                    continue;
+                }
+                String[] row = line.split("\t");
+                rows.put(row[0] + " " + row[1] + " " + row[2], row);
+            }
+        }
+        return rows;
+    }
+
+    // Compare the results with a baseline report. A result is a regression if its time per iteration is bigger, or its
+    // scoring throughput is smaller, by more than the relative tolerance, or if its error is different (the data and
+    // the training are deterministic). Returns the number of regressions.
+    public int compare (File baselineFile, double tolerance) throws IOException {
+        HashMap<String, String[]> baseline = readReport(baselineFile);
+        int numRegressions = 0;
+        for (String[] result : m_results) {
+            String key = result[0] + " " + result[1] + " " + result[2];
+            String[] base = baseline.get(key);
+            if (base == null) {
+                System.out.println("NEW\t" + key);
+                continue;
+            }
+
+            ArrayList<String> problems = new ArrayList<>();
+            double secondsPerIteration = Double.parseDouble(result[6]);
+            double baseSecondsPerIteration = Double.parseDouble(base[6]);
+            if (secondsPerIteration > baseSecondsPerIteration * (1 + tolerance)) {
+                problems.add(String.format("s_per_iter %.6f -> %.6f", baseSecondsPerIteration, secondsPerIteration));
+            }
+            double throughput = Double.parseDouble(result[7]);
+            double baseThroughput = Double.parseDouble(base[7]);
+            if (throughput * (1 + tolerance) < baseThroughput) {
+                problems.add(String.format("score_rows_per_s %.1f -> %.1f", baseThroughput, throughput));
+            }
+            if (!result[4].equals(base[4])) {
+                problems.add("error " + base[4] + " -> " + result[4]);
+            }
+
+            if (problems.isEmpty()) {
+                System.out.println("OK\t" + key);
+            }
+            else {
+                System.out.println("REGRESSION\t" + key + "\t" + String.join(", ", problems));
+                numRegressions++;
+            }
+        }
+        return numRegressions;
+    }
+
+    // Usage: MacroBenchmark [-d pendigits,letter,isolet,usps,mnist] [-I 10,100] [-M 1,3] [-scale 1.0] [-s seed]
+    //                       [-o report.tsv] [-b baseline.tsv] [-tol 0.1]
+    // The exit code is 1 if any regression is found against the baseline.
+    public static void main(String[] argv) throws Exception {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        List<Shape> shapes = new ArrayList<>(Arrays.asList(Shape.values()));
+        File reportFile = null;
+        File baselineFile = null;
+        double tolerance = 0.1;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-d":
+                    shapes.clear();
+                    for (String name : argv[++i].split(",")) {
+                        shapes.add(Shape.valueOf(name.trim().toUpperCase()));
+                    }
+                    break;
+                case "-I": benchmark.setIs(ParallelCrossValidation.parseList(argv[++i])); break;
+                case "-M": benchmark.setMs(ParallelCrossValidation.parseList(argv[++i])); break;
+                case "-scale": benchmark.setScale(Double.parseDouble(argv[++i])); break;
+                case "-s": benchmark.setSeed(Long.parseLong(argv[++i])); break;
+                case "-o": reportFile = new File(argv[++i]); break;
+                case "-b": baselineFile = new File(argv[++i]); break;
+                case "-tol": tolerance = Double.parseDouble(argv[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+
+        System.out.println(String.join("\t", COLUMNS));
+        benchmark.run(shapes);
+
+        if (reportFile != null) {
+            benchmark.writeReport(reportFile);
+        }
+        if (baselineFile != null) {
+            int numRegressions = benchmark.compare(baselineFile, tolerance);
+            System.out.println(numRegressions + " regression(s) against " + baselineFile);
+            if (numRegressions > 0) {
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package weka.classifiers.meta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// This is a Class of one attribute column kept in a memory-mapped file instead of the heap, used to train on data
+// larger than the memory. Only the weights and labels of the instances are kept in the heap.
+// The file contains the 4 sections of OffHeapAttributeColumn, each of which is mapped separately (so each section is
+// limited to 2GB):
+//   sorted indices (int) | sorted values (storage type) | values indexed by instance (storage type) | run ends (int)
+// The stump search reads the sorted sections sequentially, so the operating system can read them ahead, and the next
+// column is also loaded in the background (see "prefetch") while the current one is scanned.
+public class MappedAttributeColumn extends OffHeapAttributeColumn {
+    // A background thread which loads the next columns into the page cache
+    private static final ExecutorService m_prefetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MappedAttributeColumn-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The file of this column
+    protected File m_file;
+
+    // The last load of this column in the background, which must finish before the column is unmapped
+    protected volatile Future<?> m_prefetch;
+
+    // Write the given column to a new file in the given directory and map it.
+    // The file is deleted when the JVM exits.
+    public MappedAttributeColumn (AttributeColumn column, File directory) throws IOException {
+        m_storageType = column.getStorageType();
+        m_numInstances = column.numInstances();
+        int[] runEnds = column.getRunEnds();
+        m_numRuns = (runEnds == null) ? -1 : runEnds.length;
+
+        m_file = File.createTempFile("column", ".bin", directory);
+        m_file.deleteOnExit();
+
+        int width = m_storageType.bytesPerValue();
+        long indicesBytes = 4L * m_numInstances;
+        long valuesBytes = (long)width * m_numInstances;
+        long runEndsBytes = (runEnds == null) ? 0 : 4L * runEnds.length;
+
+        try (RandomAccessFile file = new RandomAccessFile(m_file, "rw")) {
+            FileChannel channel = file.getChannel();
+            file.setLength(indicesBytes + 2 * valuesBytes + runEndsBytes);
+
+            // The sections are written through writable mappings, which are unmapped at once rather than left to the
+            // garbage collector, since each column would otherwise keep its file mapped twice.
+            MappedByteBuffer[] sections = new MappedByteBuffer[4];
+            try {
+                sections[0] = map(channel, FileChannel.MapMode.READ_WRITE, 0, indicesBytes);
+                sections[1] = map(channel, FileChannel.MapMode.READ_WRITE, indicesBytes, valuesBytes);
+                sections[2] = map(channel, FileChannel.MapMode.READ_WRITE, indicesBytes + valuesBytes, valuesBytes);
+                if (runEnds != null) {
+                    sections[3] = map(channel, FileChannel.MapMode.READ_WRITE, indicesBytes + 2 * valuesBytes,
+                            runEndsBytes);
+                }
+                writeSections(column, sections[0], sections[1], sections[2], sections[3]);
+            } finally {
+                for (MappedByteBuffer section : sections) {
+                    DirectBuffers.free(section);
+                }
+            }
+
+            // Map all the sections read-only for training. The mappings stay valid after the file is closed.
+            m_sortedIndicesBuffer = map(channel, FileChannel.MapMode.READ_ONLY, 0, indicesBytes);
+            m_sortedValuesBuffer = map(channel, FileChannel.MapMode.READ_ONLY, indicesBytes, valuesBytes);
+            m_valuesBuffer = map(channel, FileChannel.MapMode.READ_ONLY, indicesBytes + valuesBytes, valuesBytes);
+            if (runEnds != null) {
+                m_runEndsBuffer = map(channel, FileChannel.MapMode.READ_ONLY, indicesBytes + 2 * valuesBytes,
+                        runEndsBytes);
+            }
+        }
+    }
+
+    private static MappedByteBuffer map (FileChannel channel, FileChannel.MapMode mode, long position, long size)
+            throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, position, size);
+        buffer.order(ByteOrder.nativeOrder());
+        return buffer;
+    }
+
+    // Load the sorted sections of this column into the page cache in the background.
+    public void prefetch () {
+        MappedByteBuffer sortedIndices = (MappedByteBuffer)m_sortedIndicesBuffer;
+        MappedByteBuffer sortedValues = (MappedByteBuffer)m_sortedValuesBuffer;
+        m_prefetch = m_prefetcher.submit(() -> {
+            sortedIndices.load();
+            sortedValues.load();
+        });
+    }
+
+    public boolean isOnDisk () { return true; }
+
+    // get the number of bytes of the file of this column
+    public long diskSizeInBytes () { return m_file.length(); }
+
+    // The mapped sections are kept in the page cache instead of the direct memory.
+    public long offHeapBytes () { return 0; }
+
+    // Unmap the sections of this column and delete its file. The column must not be read any more.
+    public void close () {
+        Future<?> prefetch = m_prefetch;
+        if (prefetch != null) {
+            try {
+                prefetch.get();
+            } catch (InterruptedException e) {
+                // Leave the mapping to the garbage collector rather than unmapping it while it may be read.
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // The column was not loaded, which does not matter any more.
+            }
+        }
+        super.close();
+        m_file.delete();
+    }
+}
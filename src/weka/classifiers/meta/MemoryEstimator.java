@@ -0,0 +1,247 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+import java.io.File;
+import java.util.Arrays;
+
+// This is a Class to estimate the heap used to train AdaBoostMH, for each representation of the attribute columns:
+//   DENSE:   every column is kept as doubles.
+//   COMPACT: every column is kept in the narrowest type which holds its values (see AttributeStorageType).
+//   DISK:    the columns are kept in memory-mapped files (see MappedAttributeColumn), so they take no heap.
+// The heap is the maximum of two phases:
+//   construction: copy of the raw data + weights and labels + columns + buffers to sort one column per thread
+//   training:     weights and labels + columns + buffers of one iteration + the model of T iterations
+// The sizes of the objects assume a 64-bit JVM with compressed references, so the estimate is approximate.
+public class MemoryEstimator {
+    // Representations of the attribute columns, the fastest first.
+    public enum Representation { DENSE, COMPACT, DISK }
+
+    // Size of an object header and an array header in bytes
+    private static final long OBJECT_HEADER = 12;
+    private static final long ARRAY_HEADER = 16;
+    private static final long REFERENCE = 4;
+
+    protected long m_numInstances;
+    protected int m_numAttrs;
+    protected int m_numClasses;
+    protected int m_numIterations;
+    protected int m_productSize;
+
+    // Number of bytes of each attribute value in the COMPACT representation
+    protected int[] m_bytesPerValue;
+
+    public MemoryEstimator (long numInstances, int numAttrs, int numClasses, int numIterations, int productSize) {
+        m_numInstances = numInstances;
+        m_numAttrs = numAttrs;
+        m_numClasses = numClasses;
+        m_numIterations = numIterations;
+        m_productSize = productSize;
+
+        // Without knowing the values, the COMPACT representation is assumed to be the same as the DENSE one.
+        m_bytesPerValue = new int[numAttrs];
+        Arrays.fill(m_bytesPerValue, AttributeStorageType.DOUBLE.bytesPerValue());
+    }
+
+    // Estimate the heap to train on the given data, whose class is the last attribute. The storage type of each attribute
+    // is detected from its values, unless it is assigned in storageTypes (which may be null).
+    public static MemoryEstimator forData (Instances data, int numIterations, int productSize,
+                                           AttributeStorageType[] storageTypes) {
+        int numAttrs = data.numAttributes() - 1;
+        MemoryEstimator estimator = new MemoryEstimator(data.numInstances(), numAttrs, data.numClasses(),
+                numIterations, productSize);
+
+        AttributeStorageType[] detected = new AttributeStorageType[numAttrs];
+        Arrays.fill(detected, AttributeStorageType.BYTE);
+        for (int i = 0; i < data.numInstances(); i++) {
+            estimator.widenTypes(detected, data.instance(i));
+        }
+        estimator.setStorageTypes(detected, storageTypes);
+        return estimator;
+    }
+
+    // Estimate the heap to train on the data in the given ARFF file, whose class is the last attribute.
+    // The file is read instance by instance, so it does not need to fit in the memory.
+    public static MemoryEstimator forFile (ArffLoader loader, int numIterations, int productSize,
+                                           AttributeStorageType[] storageTypes) throws Exception {
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(structure.numAttributes() - 1);
+        int numAttrs = structure.numAttributes() - 1;
+
+        AttributeStorageType[] detected = new AttributeStorageType[numAttrs];
+        Arrays.fill(detected, AttributeStorageType.BYTE);
+
+        MemoryEstimator estimator = new MemoryEstimator(0, numAttrs, structure.numClasses(),
+                numIterations, productSize);
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            if (!instance.classIsMissing()) {
+                estimator.widenTypes(detected, instance);
+                estimator.m_numInstances++;
+            }
+        }
+        estimator.setStorageTypes(detected, storageTypes);
+        return estimator;
+    }
+
+    // Widen the detected type of each attribute until it can hold the value of the given instance.
+    private void widenTypes (AttributeStorageType[] detected, Instance instance) {
+        AttributeStorageType[] types = AttributeStorageType.values();
+        for (int j = 0; j < m_numAttrs; j++) {
+            double value = instance.value(j);
+            while (!detected[j].canHold(value)) {
+                detected[j] = types[detected[j].ordinal() + 1];
+            }
+        }
+    }
+
+    // Set the storage types of the COMPACT representation, which are the same as the ones chosen by ExtendedInstances.
+    private void setStorageTypes (AttributeStorageType[] detected, AttributeStorageType[] storageTypes) {
+        for (int j = 0; j < m_numAttrs; j++) {
+            AttributeStorageType type = detected[j];
+            if (storageTypes != null && storageTypes[j] != null
+                    && (storageTypes[j] == AttributeStorageType.FLOAT || storageTypes[j].ordinal() >= type.ordinal())) {
+                type = storageTypes[j];
+            }
+            m_bytesPerValue[j] = type.bytesPerValue();
+        }
+    }
+
+    // The copy of the raw data made by AdaBoostMH.initializeClassifier: an Instance object with a double array each.
+    public long rawDataBytes () {
+        return m_numInstances * (OBJECT_HEADER + 12 + REFERENCE + ARRAY_HEADER + 8L * (m_numAttrs + 1));
+    }
+
+    // WeightedMultiLabeledInstance of each instance, with an int array of labels and a double array of weights.
+    public long weightsAndLabelsBytes () {
+        return m_numInstances * (OBJECT_HEADER + 2 * REFERENCE + REFERENCE
+                + 2 * ARRAY_HEADER + 12L * m_numClasses);
+    }
+
+    // All the attribute columns: the values, the sorted values and the sorted indices (see AttributeColumn).
+    // The run ends are not counted because they are only kept when they take less than half of the sorted indices.
+    public long columnsBytes (Representation representation) {
+        if (representation == Representation.DISK) {
+            return 0;
+        }
+        long bytes = 0;
+        for (int j = 0; j < m_numAttrs; j++) {
+            int bytesPerValue = (representation == Representation.DENSE)
+                    ? AttributeStorageType.DOUBLE.bytesPerValue() : m_bytesPerValue[j];
+            bytes += m_numInstances * (2 * bytesPerValue + 4) + 3 * ARRAY_HEADER;
+        }
+        return bytes;
+    }
+
+    // The buffers to sort the columns (see ColumnSorter), one column per thread of ExtendedInstances.buildColumns:
+    // the values as doubles, and the radix keys and the sorted positions with their double buffers.
+    public long sortBufferBytes () {
+        long buffers = m_numInstances * (8 + 2 * 8 + 2 * 4) + 5 * ARRAY_HEADER;
+        return ExtendedInstances.numBuildThreads(m_numAttrs) * buffers;
+    }
+
+    // The buffers of one iteration: the original labels saved by ProductLearner,
+    // and the bitsets of \varphi(x_i) of the stumps in a product and of the product itself.
+    public long trainingBuffersBytes () {
+        return m_numInstances * (REFERENCE + ARRAY_HEADER + 4L * m_numClasses)
+                + (m_productSize + 1) * (ARRAY_HEADER + (m_numInstances + 63) / 64 * 8);
+    }
+
+    // The model: T product learners, each of which has m stumps with a vote vector.
+    public long modelBytes () {
+        long stump = OBJECT_HEADER + 64 + ARRAY_HEADER + 8L * m_numClasses;
+        long product = OBJECT_HEADER + 96 + 2 * (OBJECT_HEADER + 8 + ARRAY_HEADER + REFERENCE * m_productSize)
+                + ARRAY_HEADER + 8L * m_numClasses;
+        return m_numIterations * (product + m_productSize * stump + REFERENCE);
+    }
+
+    // The heap of the construction of ExtendedInstances. The raw data is only kept when it is an Instances object.
+    public long constructionBytes (Representation representation, boolean rawDataInHeap) {
+        return (rawDataInHeap ? rawDataBytes() : 0) + weightsAndLabelsBytes() + columnsBytes(representation)
+                + sortBufferBytes();
+    }
+
+    // The heap of the training after the construction
+    public long trainingBytes (Representation representation) {
+        return weightsAndLabelsBytes() + columnsBytes(representation) + trainingBuffersBytes() + modelBytes();
+    }
+
+    // The peak heap of the construction and the training
+    public long totalBytes (Representation representation, boolean rawDataInHeap) {
+        return Math.max(constructionBytes(representation, rawDataInHeap), trainingBytes(representation));
+    }
+
+    // The heap which can still be allocated
+    public static long availableHeap () {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    // Choose the first representation which fits in the available heap, starting from the preferred one and falling
+    // back in the order DENSE, COMPACT, DISK. Returns null if none of them fits.
+    public Representation choose (Representation preferred, long availableBytes, boolean rawDataInHeap) {
+        Representation[] representations = Representation.values();
+        for (int r = preferred.ordinal(); r < representations.length; r++) {
+            if (totalBytes(representations[r], rawDataInHeap) <= availableBytes) {
+                return representations[r];
+            }
+        }
+        return null;
+    }
+
+    // A report of the estimated heap of each representation
+    public String report (long availableBytes, boolean rawDataInHeap) {
+        StringBuilder report = new StringBuilder();
+        report.append("Memory estimate for ").append(m_numInstances).append(" instances, ").append(m_numAttrs)
+                .append(" attributes, ").append(m_numClasses).append(" classes, I=").append(m_numIterations)
+                .append(", M=").append(m_productSize).append(":\n");
+        report.append("  raw data copy:       ").append(toMB(rawDataInHeap ? rawDataBytes() : 0)).append("\n");
+        report.append("  weights and labels:  ").append(toMB(weightsAndLabelsBytes())).append("\n");
+        report.append("  sort buffer:         ").append(toMB(sortBufferBytes())).append("\n");
+        report.append("  training buffers:    ").append(toMB(trainingBuffersBytes())).append("\n");
+        report.append("  model:               ").append(toMB(modelBytes())).append("\n");
+        for (Representation representation : Representation.values()) {
+            long total = totalBytes(representation, rawDataInHeap);
+            report.append("  ").append(String.format("%-8s", representation)).append(" columns ")
+                    .append(toMB(columnsBytes(representation))).append(", total ").append(toMB(total))
+                    .append(total <= availableBytes ? "" : " (does not fit)").append("\n");
+        }
+        report.append("  available heap:      ").append(toMB(availableBytes)).append("\n");
+        report.append("  (sparse columns are not supported)");
+        return report.toString();
+    }
+
+    private static String toMB (long bytes) {
+        return String.format("%.1f MB", bytes / 1048576.0);
+    }
+
+    // Usage: MemoryEstimator -t <arff file> [-I 100] [-M 3]
+    // Estimate the heap before launching a job. The file is read instance by instance.
+    public static void main(String[] argv) throws Exception {
+        String file = null;
+        int numIterations = 100;
+        int productSize = 3;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": file = argv[++i]; break;
+                case "-I": numIterations = Integer.parseInt(argv[++i]); break;
+                case "-M": productSize = Integer.parseInt(argv[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: MemoryEstimator -t <arff file> [-I 100] [-M 3]");
+            return;
+        }
+
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(new File(file));
+        MemoryEstimator estimator = forFile(loader, numIterations, productSize, null);
+
+        // The Weka command line loads the whole file first, while ExtendedInstances.loadOnDisk does not.
+        System.out.println(estimator.report(availableHeap(), true));
+    }
+}
@@ -0,0 +1,191 @@
+package weka.classifiers.meta;
+
+import weka.core.Instances;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.Arrays;
+
+// This is a Class to evaluate AdaBoostMH at several numbers of iterations (horizons) in a single boosting run.
+// Because boosting is additive, the model with T iterations contains the models with all the smaller T as prefixes:
+// \vec{f}^{(T)}(x) = \sum_{t=1}^{T}\alpha^{(t)}*\vec{v}^{(t)}*\varphi^{(t)}(x)
+// So, the score vector \vec{f}(x) of each test instance is kept and updated by each new base learner, and the
+// error, log-loss and time are reported at each requested horizon. The whole curve costs one training run plus
+// O(T * n_test) scoring.
+public class MultiHorizonEvaluation {
+    // The classifier to train, with its options (such as I and M) already set.
+    protected AdaBoostMH m_booster;
+
+    // The horizons to report, in ascending order. The largest one is the number of iterations to train.
+    protected int[] m_horizons;
+
+    // Results at each horizon
+    protected int[] m_numIterations;             // Number of iterations actually performed (boosting may stop early)
+    protected double[] m_errorRates;
+    protected double[] m_logLosses;
+    protected double[] m_trainingSeconds;        // Training time accumulated until the horizon
+    protected double[] m_scoringSeconds;         // Scoring time of the test instances accumulated until the horizon
+
+    public MultiHorizonEvaluation (AdaBoostMH booster, int[] horizons) {
+        m_booster = booster;
+        m_horizons = horizons.clone();
+        Arrays.sort(m_horizons);
+    }
+
+    // Train the classifier on the training data, and evaluate the test data at each horizon.
+    // The test instances with a missing class are skipped, the same as the training instances are.
+    public void evaluate (Instances train, Instances test) throws Exception {
+        test = new Instances(test);
+        test.deleteWithMissingClass();
+
+        int numTest = test.numInstances();
+        int numClasses = test.numClasses();
+        int numHorizons = m_horizons.length;
+
+        m_numIterations = new int[numHorizons];
+        m_errorRates = new double[numHorizons];
+        m_logLosses = new double[numHorizons];
+        m_trainingSeconds = new double[numHorizons];
+        m_scoringSeconds = new double[numHorizons];
+
+        // The test instances are transformed into double arrays only once.
+        double[][] testInsts = new double[numTest][];
+        int[] classValues = new int[numTest];
+        for (int i = 0; i < numTest; i++) {
+            testInsts[i] = test.instance(i).toDoubleArray();
+            classValues[i] = (int)test.instance(i).classValue();
+        }
+
+        // The scores f_l(x_i) of the test instances, accumulated by each new base learner.
+        double[][] scores = new double[numTest][numClasses];
+
+        m_booster.setI(m_horizons[numHorizons - 1]);
+
+        long trainingTime = 0;
+        long scoringTime = 0;
+
+        long start = System.nanoTime();
+        m_booster.initializeClassifier(train);
+        trainingTime += System.nanoTime() - start;
+
+        // The training data is released even if an iteration fails.
+        try {
+            int indexHorizon = 0;
+            while (indexHorizon < numHorizons) {
+                start = System.nanoTime();
+                boolean hasNext = m_booster.next();
+                trainingTime += System.nanoTime() - start;
+
+                int t = m_booster.getNumIterationsPerformed();
+
+                if (hasNext) {
+                    start = System.nanoTime();
+                    BaseLearner baseLearner = m_booster.getBaseLearner(t - 1);
+                    double alpha = baseLearner.getAlpha();
+                    for (int i = 0; i < numTest; i++) {
+                        for (int l = 0; l < numClasses; l++) {
+                            scores[i][l] += alpha * baseLearner.doClassification(testInsts[i], l);
+                        }
+                    }
+                    scoringTime += System.nanoTime() - start;
+                }
+
+                // When boosting stops early, the final model is used for all the remaining horizons.
+                while (indexHorizon < numHorizons && (m_horizons[indexHorizon] <= t || !hasNext)) {
+                    m_numIterations[indexHorizon] = t;
+                    m_trainingSeconds[indexHorizon] = trainingTime / 1e9;
+                    m_scoringSeconds[indexHorizon] = scoringTime / 1e9;
+                    evaluateScores(scores, classValues, indexHorizon);
+                    indexHorizon++;
+                }
+            }
+        } finally {
+            m_booster.done();
+        }
+    }
+
+    // Compute the error rate and log-loss of the current scores.
+    // The probabilities are the same as the ones of AdaBoostMH.distributionForInstance: p_l = e^{f_l} / \sum_{k}e^{f_k},
+    // and the log-loss is computed as \log\sum_{k}e^{f_k} - f_y to avoid overflow of the exponent.
+    protected void evaluateScores (double[][] scores, int[] classValues, int indexHorizon) {
+        int numErrors = 0;
+        double logLoss = 0;
+
+        for (int i = 0; i < scores.length; i++) {
+            double[] score = scores[i];
+
+            int predicted = 0;
+            for (int l = 1; l < score.length; l++) {
+                if (score[l] > score[predicted]) {
+                    predicted = l;
+                }
+            }
+            if (predicted != classValues[i]) {
+                numErrors++;
+            }
+
+            double sumExp = 0;
+            for (int l = 0; l < score.length; l++) {
+                sumExp += Math.exp(score[l] - score[predicted]);
+            }
+            logLoss += score[predicted] + Math.log(sumExp) - score[classValues[i]];
+        }
+
+        m_errorRates[indexHorizon] = scores.length == 0 ? 0 : (double)numErrors / scores.length;
+        m_logLosses[indexHorizon] = scores.length == 0 ? 0 : logLoss / scores.length;
+    }
+
+    public int[] getHorizons () { return m_horizons; }
+    public int[] getNumIterations () { return m_numIterations; }
+    public double[] getErrorRates () { return m_errorRates; }
+    public double[] getLogLosses () { return m_logLosses; }
+    public double[] getTrainingSeconds () { return m_trainingSeconds; }
+    public double[] getScoringSeconds () { return m_scoringSeconds; }
+
+    // Print the results at each horizon.
+    public void printResults () {
+        System.out.println("I\tIterations\tError\tLogLoss\tTrainTime(s)\tScoreTime(s)");
+        for (int h = 0; h < m_horizons.length; h++) {
+            System.out.println(m_horizons[h] + "\t" + m_numIterations[h]
+                    + "\t" + String.format("%.4f", m_errorRates[h])
+                    + "\t" + String.format("%.4f", m_logLosses[h])
+                    + "\t" + String.format("%.3f", m_trainingSeconds[h])
+                    + "\t" + String.format("%.3f", m_scoringSeconds[h]));
+        }
+    }
+
+    // Usage: MultiHorizonEvaluation -t <train arff> -T <test arff> [-H 10,100,500,1000] [-M 3] [-S AUTO] [-P]
+    public static void main(String[] argv) throws Exception {
+        String trainFile = null;
+        String testFile = null;
+        int[] horizons = {10, 100, 500, 1000};
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setPrintProgress(false);
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": trainFile = argv[++i]; break;
+                case "-T": testFile = argv[++i]; break;
+                case "-H": horizons = ParallelCrossValidation.parseList(argv[++i]); break;
+                case "-M": booster.setM(Integer.parseInt(argv[++i])); break;
+                case "-S": booster.setAttrStorage(argv[++i]); break;
+                case "-P": booster.setPruneAttributes(true); break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (trainFile == null || testFile == null) {
+            System.err.println("Usage: MultiHorizonEvaluation -t <train arff> -T <test arff> [-H 10,100,500,1000]"
+                    + " [-M 3] [-S AUTO] [-P]");
+            return;
+        }
+
+        Instances train = new Instances(new BufferedReader(new FileReader(trainFile)));
+        train.setClassIndex(train.numAttributes() - 1);
+        Instances test = new Instances(new BufferedReader(new FileReader(testFile)));
+        test.setClassIndex(test.numAttributes() - 1);
+
+        MultiHorizonEvaluation evaluation = new MultiHorizonEvaluation(booster, horizons);
+        evaluation.evaluate(train, test);
+        evaluation.printResults();
+    }
+}
@@ -0,0 +1,158 @@
+package weka.classifiers.meta;
+
+import java.nio.ByteBuffer;
+
+// This is a Class of one attribute column kept in direct buffers outside the heap, so that the garbage collector does
+// not trace the columns of a large training set. The column has 4 sections, each in its own buffer (so each section is
+// limited to 2GB):
+//   sorted indices (int) | sorted values (storage type) | values indexed by instance (storage type) | run ends (int)
+// The memory is released by "close" (see ExtendedInstances.close), after which the column must not be read.
+// MappedAttributeColumn keeps the same sections in a memory-mapped file.
+public class OffHeapAttributeColumn extends AttributeColumn {
+    // The sections of the column
+    protected ByteBuffer m_sortedIndicesBuffer;
+    protected ByteBuffer m_sortedValuesBuffer;
+    protected ByteBuffer m_valuesBuffer;
+    protected ByteBuffer m_runEndsBuffer;
+
+    // Number of runs of equal values in the sorted column, or -1 if every position is the end of a run.
+    protected int m_numRuns;
+
+    // Construction function used by the subclasses which keep the sections elsewhere.
+    protected OffHeapAttributeColumn () {
+    }
+
+    // Copy the given column into direct buffers.
+    public OffHeapAttributeColumn (AttributeColumn column) {
+        copySections(column);
+    }
+
+    // Allocate the direct buffers of the sections, and copy the given column into them.
+    private void copySections (AttributeColumn column) {
+        m_storageType = column.getStorageType();
+        m_numInstances = column.numInstances();
+        int[] runEnds = column.getRunEnds();
+        m_numRuns = (runEnds == null) ? -1 : runEnds.length;
+
+        long valuesBytes = (long)m_storageType.bytesPerValue() * m_numInstances;
+        m_sortedIndicesBuffer = DirectBuffers.allocate(4L * m_numInstances);
+        m_sortedValuesBuffer = DirectBuffers.allocate(valuesBytes);
+        m_valuesBuffer = DirectBuffers.allocate(valuesBytes);
+        if (runEnds != null) {
+            m_runEndsBuffer = DirectBuffers.allocate(4L * runEnds.length);
+        }
+        writeSections(column, m_sortedIndicesBuffer, m_sortedValuesBuffer, m_valuesBuffer, m_runEndsBuffer);
+    }
+
+    // Write the sections of the given column into the given buffers, in the storage type of this column.
+    protected void writeSections (AttributeColumn column, ByteBuffer sortedIndices, ByteBuffer sortedValues,
+                                  ByteBuffer values, ByteBuffer runEnds) {
+        for (int pos = 0; pos < m_numInstances; pos++) {
+            sortedIndices.putInt(pos << 2, column.sortedIndex(pos));
+            putValue(sortedValues, pos, column.sortedValue(pos));
+        }
+        for (int i = 0; i < m_numInstances; i++) {
+            putValue(values, i, column.value(i));
+        }
+        if (runEnds != null) {
+            int[] columnRunEnds = column.getRunEnds();
+            for (int run = 0; run < columnRunEnds.length; run++) {
+                runEnds.putInt(run << 2, columnRunEnds[run]);
+            }
+        }
+    }
+
+    // Write the value in the pos-th position of a section in the storage type of this column.
+    private void putValue (ByteBuffer buffer, int pos, double value) {
+        switch (m_storageType) {
+            case BYTE:
+                buffer.put(pos, (byte)(int)value);
+                break;
+            case SHORT:
+                buffer.putShort(pos << 1, (short)value);
+                break;
+            case FLOAT:
+                buffer.putFloat(pos << 2, (float)value);
+                break;
+            default:
+                buffer.putDouble(pos << 3, value);
+                break;
+        }
+    }
+
+    // Read the value in the pos-th position of a section in the storage type of this column.
+    private double getValue (ByteBuffer buffer, int pos) {
+        switch (m_storageType) {
+            case BYTE:
+                return buffer.get(pos) & 0xFF;
+            case SHORT:
+                return buffer.getShort(pos << 1);
+            case FLOAT:
+                return buffer.getFloat(pos << 2);
+            default:
+                return buffer.getDouble(pos << 3);
+        }
+    }
+
+    public double value (int index) { return getValue(m_valuesBuffer, index); }
+
+    public int sortedIndex (int pos) { return m_sortedIndicesBuffer.getInt(pos << 2); }
+
+    public double sortedValue (int pos) { return getValue(m_sortedValuesBuffer, pos); }
+
+    public int runEnd (int run) { return m_runEndsBuffer == null ? run + 1 : m_runEndsBuffer.getInt(run << 2); }
+
+    public int[] getRunEnds () {
+        if (m_runEndsBuffer == null) {
+            return null;
+        }
+        int[] runEnds = new int[m_numRuns];
+        for (int run = 0; run < m_numRuns; run++) {
+            runEnds[run] = m_runEndsBuffer.getInt(run << 2);
+        }
+        return runEnds;
+    }
+
+    public int numRuns () { return m_numRuns < 0 ? m_numInstances : m_numRuns; }
+
+    // The batch is merged into a copy of this column in the heap (see AttributeColumn.append), which is then copied
+    // into new buffers. The old buffers are released, so the heap only holds the column during the merge.
+    public void append (AttributeStorageType storageType, double[] batchValues, int[] sortedBatch) {
+        double[] values = new double[m_numInstances];
+        int[] sortedIndices = new int[m_numInstances];
+        for (int i = 0; i < m_numInstances; i++) {
+            values[i] = value(i);
+            sortedIndices[i] = sortedIndex(i);
+        }
+        AttributeColumn merged = new AttributeColumn(m_storageType, values, sortedIndices);
+        merged.append(storageType, batchValues, sortedBatch);
+
+        close();
+        copySections(merged);
+    }
+
+    // A column outside the heap takes no heap except a few objects.
+    public long memoryInBytes () { return 0; }
+
+    // get the number of bytes of the sections of this column outside the heap
+    public long offHeapBytes () {
+        long bytes = 0;
+        for (ByteBuffer buffer : new ByteBuffer[] {m_sortedIndicesBuffer, m_sortedValuesBuffer, m_valuesBuffer,
+                m_runEndsBuffer}) {
+            bytes += (buffer == null) ? 0 : buffer.capacity();
+        }
+        return bytes;
+    }
+
+    // Release the sections of this column. The column must not be read any more.
+    public void close () {
+        ByteBuffer[] buffers = {m_sortedIndicesBuffer, m_sortedValuesBuffer, m_valuesBuffer, m_runEndsBuffer};
+        m_sortedIndicesBuffer = null;
+        m_sortedValuesBuffer = null;
+        m_valuesBuffer = null;
+        m_runEndsBuffer = null;
+        for (ByteBuffer buffer : buffers) {
+            DirectBuffers.free(buffer);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package weka.classifiers.meta;
+
+import java.nio.ByteBuffer;
+
+// This is a Class of the weights and labels of all the instances kept in direct buffers outside the heap, used instead
+// of one WeightedMultiLabeledInstance per instance when the training set is large (see ExtendedInstances.close).
+// The garbage collector then only traces a few buffers instead of 3 objects per instance, and n*K*9 bytes leave the
+// heap. The matrices are laid out row by row (one row of K values per instance), in blocks of rows which take at most
+// 1GB each, because a buffer is limited to 2GB:
+//   weights: K doubles per row,  labels: K bytes per row (+1, -1, or 0 for a virtual label in ProductLearner)
+// The weights are the same as the ones of WeightedMultiLabeledInstance, so the model is the same.
+// All the classes are kept, so the classes dropped by the sparse class mode get zero weights.
+public class OffHeapLabelWeights {
+    // Rows per block are 2^m_blockShift, so that a block of weights takes at most 2^30 bytes.
+    protected int m_blockShift;
+    protected int m_blockMask;
+
+    protected int m_numInstances;
+    protected int m_numClasses;
+
+    protected ByteBuffer[] m_weightBlocks;
+    protected ByteBuffer[] m_labelBlocks;
+
+    // The class of each instance, used to initialize the weights again.
+    protected int[] m_classIndices;
+
+    public OffHeapLabelWeights (int numInstances, int numClasses) {
+        m_numInstances = numInstances;
+        m_numClasses = numClasses;
+        m_classIndices = new int[numInstances];
+
+        int rowBytes = 8 * Math.max(1, numClasses);
+        m_blockShift = 0;
+        while (m_blockShift < 30 && ((long)rowBytes << (m_blockShift + 1)) <= (1L << 30)) {
+            m_blockShift++;
+        }
+        m_blockMask = (1 << m_blockShift) - 1;
+
+        int numBlocks = (int)(((long)numInstances + m_blockMask) >>> m_blockShift);
+        m_weightBlocks = new ByteBuffer[numBlocks];
+        m_labelBlocks = new ByteBuffer[numBlocks];
+        for (int b = 0; b < numBlocks; b++) {
+            int numRows = Math.min(1 << m_blockShift, numInstances - (b << m_blockShift));
+            m_weightBlocks[b] = DirectBuffers.allocate(8L * numRows * numClasses);
+            m_labelBlocks[b] = DirectBuffers.allocate((long)numRows * numClasses);
+        }
+    }
+
+    // Set the labels of the index-th instance from its class: +1 for the class and -1 for the others.
+    public void setClass (int index, int classIndex) {
+        m_classIndices[index] = classIndex;
+        for (int l = 0; l < m_numClasses; l++) {
+            setLabel(index, l, (l == classIndex) ? 1 : -1);
+        }
+    }
+
+    // Copy the labels of the given instance from another matrix, used by the views of the data.
+    public void copyLabels (int index, OffHeapLabelWeights other) {
+        m_classIndices[index] = other.m_classIndices[index];
+        for (int l = 0; l < m_numClasses; l++) {
+            setLabel(index, l, other.getLabel(index, l));
+        }
+    }
+
+    // Copy the weights and labels of the given instance from another matrix, used when instances are appended.
+    public void copyRow (int index, OffHeapLabelWeights other) {
+        copyLabels(index, other);
+        for (int l = 0; l < m_numClasses; l++) {
+            setWeight(index, l, other.getWeight(index, l));
+        }
+    }
+
+    // Initialize the weights of the index-th instance, the same as WeightedMultiLabeledInstance.initWeights:
+    // 1/(2*n) for its class, and 1/(2*n*(K-1)) for the others. The labels are reset from its class.
+    public void initWeights (int index, int numInsts) {
+        setClass(index, m_classIndices[index]);
+        for (int l = 0; l < m_numClasses; l++) {
+            setWeight(index, l, (l == m_classIndices[index]) ? (double)1 / (2 * numInsts)
+                    : (double)1 / (2 * numInsts * (m_numClasses - 1)));
+        }
+    }
+
+    // multiply all the weights of the index-th instance by a factor
+    public void scaleWeights (int index, double factor) {
+        for (int l = 0; l < m_numClasses; l++) {
+            setWeight(index, l, getWeight(index, l) * factor);
+        }
+    }
+
+    // The position of w_{i,l} in its block of weights in bytes, and of y_{i,l} in its block of labels
+    private int weightOffset (int index, int l) { return ((index & m_blockMask) * m_numClasses + l) << 3; }
+    private int labelOffset (int index, int l) { return (index & m_blockMask) * m_numClasses + l; }
+
+    public double getWeight (int index, int l) {
+        return m_weightBlocks[index >>> m_blockShift].getDouble(weightOffset(index, l));
+    }
+
+    public void setWeight (int index, int l, double weight) {
+        m_weightBlocks[index >>> m_blockShift].putDouble(weightOffset(index, l), weight);
+    }
+
+    public int getLabel (int index, int l) {
+        return m_labelBlocks[index >>> m_blockShift].get(labelOffset(index, l));
+    }
+
+    public void setLabel (int index, int l, int label) {
+        m_labelBlocks[index >>> m_blockShift].put(labelOffset(index, l), (byte)label);
+    }
+
+    // Step over an instance in the split scan: edges[l] -= w_{i,l} * y_{i,l}, the same as EdgeKernels.subtractEdges.
+    public void subtractEdges (double[] edges, int index) {
+        ByteBuffer weights = m_weightBlocks[index >>> m_blockShift];
+        ByteBuffer labels = m_labelBlocks[index >>> m_blockShift];
+        int labelOffset = labelOffset(index, 0);
+        int weightOffset = labelOffset << 3;
+        for (int l = 0; l < m_numClasses; l++) {
+            edges[l] -= weights.getDouble(weightOffset + (l << 3)) * labels.get(labelOffset + l);
+        }
+    }
+
+    // Add an instance to the class-wise sums of weights and initial edges, the same as EdgeKernels.addWeightsAndEdges.
+    public void addWeightsAndEdges (double[] weightsPerClass, double[] edges, int index) {
+        ByteBuffer weights = m_weightBlocks[index >>> m_blockShift];
+        ByteBuffer labels = m_labelBlocks[index >>> m_blockShift];
+        int labelOffset = labelOffset(index, 0);
+        int weightOffset = labelOffset << 3;
+        for (int l = 0; l < m_numClasses; l++) {
+            double weight = weights.getDouble(weightOffset + (l << 3));
+            weightsPerClass[l] += weight;
+            edges[l] += weight * labels.get(labelOffset + l);
+        }
+    }
+
+    // Copy all the labels into a new buffer outside the heap, used to restore them after ProductLearner relabels them.
+    public ByteBuffer[] saveLabels () {
+        ByteBuffer[] saved = new ByteBuffer[m_labelBlocks.length];
+        for (int b = 0; b < m_labelBlocks.length; b++) {
+            ByteBuffer source = m_labelBlocks[b].duplicate();
+            source.clear();
+            saved[b] = DirectBuffers.allocate(source.capacity());
+            saved[b].put(source);
+        }
+        return saved;
+    }
+
+    // get the label y_{i,l} saved by "saveLabels"
+    public int getSavedLabel (ByteBuffer[] saved, int index, int l) {
+        return saved[index >>> m_blockShift].get(labelOffset(index, l));
+    }
+
+    // Restore the labels saved by "saveLabels", and release the saved copy.
+    public void restoreLabels (ByteBuffer[] saved) {
+        for (int b = 0; b < m_labelBlocks.length; b++) {
+            ByteBuffer source = saved[b];
+            source.clear();
+            ByteBuffer target = m_labelBlocks[b].duplicate();
+            target.clear();
+            target.put(source);
+            DirectBuffers.free(saved[b]);
+            saved[b] = null;
+        }
+    }
+
+    // get the number of bytes of the weights and labels outside the heap
+    public long offHeapBytes () {
+        return 9L * m_numInstances * m_numClasses;
+    }
+
+    // Release the buffers. The weights and labels must not be read any more.
+    public void close () {
+        ByteBuffer[] weightBlocks = m_weightBlocks;
+        ByteBuffer[] labelBlocks = m_labelBlocks;
+        m_weightBlocks = null;
+        m_labelBlocks = null;
+        if (weightBlocks != null) {
+            for (int b = 0; b < weightBlocks.length; b++) {
+                DirectBuffers.free(weightBlocks[b]);
+                DirectBuffers.free(labelBlocks[b]);
+            }
+        }
+    }
+}
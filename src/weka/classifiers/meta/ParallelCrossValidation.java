@@ -0,0 +1,330 @@
+package weka.classifiers.meta;
+
+import weka.core.Instances;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// This is a Class of cross validation and grid search of the parameters I and M of AdaBoostMH.
+// All the data is extended and sorted only once. Each fold is a view of the same ExtendedInstances object,
+// in which the test rows are masked out instead of being copied, so all the folds share the read-only columns.
+// Each combination of (fold, M) is trained in its own thread with its own weights and labels.
+// Because boosting is additive, the model with I iterations is a prefix of the model with the largest I,
+// so only the largest I is trained, and the test folds are evaluated after each iteration.
+// With the off-heap mode, the data and the weights of each view are kept in direct buffers (see OffHeapLabelWeights):
+// each view is closed after its fold, and the data by "close".
+public class ParallelCrossValidation implements AutoCloseable {
+    // The whole data, extended and sorted once.
+    protected ExtendedInstances m_extendedInsts;
+
+    // Class value of each instance
+    protected int[] m_classValues;
+
+    // Number of folds
+    protected int m_numFolds = 10;
+
+    // The fold of each instance
+    protected int[] m_folds;
+
+    // Values of I and M to evaluate
+    protected int[] m_Is = {100};
+    protected int[] m_Ms = {3};
+
+    // Number of threads used to train the classifiers
+    protected int m_numThreads = Runtime.getRuntime().availableProcessors();
+
+    // Whether to prune the attributes in the stump search (see AdaBoostMH.setPruneAttributes)
+    protected boolean m_pruneAttributes = false;
+
+    // Accuracy of each fold with each M and I: m_accuracies[M index][I index][fold]
+    protected double[][][] m_accuracies;
+
+    public ParallelCrossValidation (Instances data, int numFolds, long seed) {
+        this(data, numFolds, seed, false);
+    }
+
+    // If offHeap is true, the data is kept outside the heap, and must be released by "close".
+    public ParallelCrossValidation (Instances data, int numFolds, long seed, boolean offHeap) {
+        data = new Instances(data);
+        data.deleteWithMissingClass();
+
+        m_extendedInsts = new ExtendedInstances(data, null, null, offHeap);
+        m_numFolds = numFolds;
+
+        m_classValues = new int[data.numInstances()];
+        for (int i = 0; i < data.numInstances(); i++) {
+            m_classValues[i] = (int)data.instance(i).classValue();
+        }
+
+        m_folds = stratifiedFolds(m_classValues, numFolds, seed);
+    }
+
+    // Assign each instance to a fold. The instances are shuffled and then grouped by class,
+    // so each fold gets about the same number of instances of each class.
+    protected static int[] stratifiedFolds (int[] classValues, int numFolds, long seed) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < classValues.length; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(seed));
+        Collections.sort(order, (i1, i2) -> Integer.compare(classValues[i1], classValues[i2]));
+
+        int[] folds = new int[classValues.length];
+        for (int pos = 0; pos < order.size(); pos++) {
+            folds[order.get(pos)] = pos % numFolds;
+        }
+        return folds;
+    }
+
+    public void setIs (int[] Is) {
+        m_Is = Is.clone();
+        Arrays.sort(m_Is);
+    }
+
+    public void setMs (int[] Ms) { m_Ms = Ms.clone(); }
+
+    public void setNumThreads (int numThreads) { m_numThreads = numThreads; }
+
+    public void setPruneAttributes (boolean pruneAttributes) { m_pruneAttributes = pruneAttributes; }
+
+    // Run all the combinations of (fold, M) in parallel.
+    // If a fold fails, the other folds are cancelled, and this method only returns once all of them have stopped,
+    // because the data they read may be released by "close" right after (outside the heap, at once).
+    public void run () throws Exception {
+        m_accuracies = new double[m_Ms.length][m_Is.length][m_numFolds];
+
+        ExecutorService executor = Executors.newFixedThreadPool(m_numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        boolean completed = false;
+        try {
+            for (int m = 0; m < m_Ms.length; m++) {
+                for (int fold = 0; fold < m_numFolds; fold++) {
+                    final int indexM = m;
+                    final int indexFold = fold;
+                    futures.add(executor.submit(() -> {
+                        runFold(indexM, indexFold);
+                        return null;
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            completed = true;
+        } finally {
+            if (completed) {
+                executor.shutdown();
+            } else {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                executor.shutdownNow();
+                awaitFolds(executor);
+            }
+        }
+    }
+
+    // Wait until all the folds of the executor have stopped, even if this thread is interrupted meanwhile.
+    private static void awaitFolds (ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Train AdaBoostMH with the indexM-th M on all the folds except the indexFold-th one,
+    // and evaluate the indexFold-th fold at each I.
+    protected void runFold (int indexM, int indexFold) throws Exception {
+        int numInstances = m_extendedInsts.numInstances();
+
+        boolean[] activeRows = new boolean[numInstances];
+        int numTest = 0;
+        for (int i = 0; i < numInstances; i++) {
+            activeRows[i] = (m_folds[i] != indexFold);
+            if (!activeRows[i]) {
+                numTest++;
+            }
+        }
+        int[] testRows = new int[numTest];
+        for (int i = 0, pos = 0; i < numInstances; i++) {
+            if (!activeRows[i]) {
+                testRows[pos++] = i;
+            }
+        }
+
+        try (ExtendedInstances view = m_extendedInsts.createView(activeRows)) {
+            runFold(indexM, indexFold, view, testRows);
+        }
+    }
+
+    // Train on the given view of the training folds, and evaluate the test rows at each I.
+    protected void runFold (int indexM, int indexFold, ExtendedInstances view, int[] testRows) throws Exception {
+        int numTest = testRows.length;
+        int numClasses = m_extendedInsts.numClasses();
+
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setI(m_Is[m_Is.length - 1]);
+        booster.setM(m_Ms[indexM]);
+        booster.setPruneAttributes(m_pruneAttributes);
+        booster.setPrintProgress(false);
+        booster.initializeClassifier(view);
+
+        // The scores f_l(x_i) of the test instances, accumulated by each new base learner.
+        double[][] scores = new double[numTest][numClasses];
+
+        int indexI = 0;
+        while (indexI < m_Is.length) {
+            // Stop at once when the fold is cancelled because another one failed (see "run").
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException("The fold was cancelled.");
+            }
+            boolean hasNext = booster.next();
+            int t = booster.getNumIterationsPerformed();
+
+            if (hasNext) {
+                BaseLearner baseLearner = booster.getBaseLearner(t - 1);
+                double alpha = baseLearner.getAlpha();
+                for (int pos = 0; pos < numTest; pos++) {
+                    for (int l = 0; l < numClasses; l++) {
+                        scores[pos][l] += alpha * baseLearner.doClassification(view, testRows[pos], l);
+                    }
+                }
+            }
+
+            // When boosting stops early, the final model is used for all the remaining I.
+            while (indexI < m_Is.length && (m_Is[indexI] <= t || !hasNext)) {
+                m_accuracies[indexM][indexI][indexFold] = accuracy(scores, testRows);
+                indexI++;
+            }
+        }
+    }
+
+    // Release the data, which must not be used any more. It is needed in the off-heap mode.
+    public void close () {
+        m_extendedInsts.close();
+    }
+
+    // The accuracy of the scores, in which the predicted class has the maximum score.
+    protected double accuracy (double[][] scores, int[] testRows) {
+        int numCorrect = 0;
+        for (int pos = 0; pos < testRows.length; pos++) {
+            int predicted = 0;
+            for (int l = 1; l < scores[pos].length; l++) {
+                if (scores[pos][l] > scores[pos][predicted]) {
+                    predicted = l;
+                }
+            }
+            if (predicted == m_classValues[testRows[pos]]) {
+                numCorrect++;
+            }
+        }
+        return testRows.length == 0 ? 0 : (double)numCorrect / testRows.length;
+    }
+
+    // get the accuracy averaged over all the folds, for the indexM-th M and the indexI-th I
+    public double getMeanAccuracy (int indexM, int indexI) {
+        double sum = 0;
+        for (double accuracy : m_accuracies[indexM][indexI]) {
+            sum += accuracy;
+        }
+        return sum / m_numFolds;
+    }
+
+    // get the standard deviation of the accuracy over all the folds, for the indexM-th M and the indexI-th I
+    public double getStdDevAccuracy (int indexM, int indexI) {
+        double mean = getMeanAccuracy(indexM, indexI);
+        double sum = 0;
+        for (double accuracy : m_accuracies[indexM][indexI]) {
+            sum += (accuracy - mean) * (accuracy - mean);
+        }
+        return Math.sqrt(sum / m_numFolds);
+    }
+
+    // Print the accuracy of each combination of M and I.
+    public void printResults () {
+        System.out.println(m_numFolds + "-fold cross validation");
+        System.out.println("M\tI\tAccuracy\tStdDev");
+        for (int m = 0; m < m_Ms.length; m++) {
+            for (int i = 0; i < m_Is.length; i++) {
+                System.out.println(m_Ms[m] + "\t" + m_Is[i] + "\t" + String.format("%.4f", getMeanAccuracy(m, i))
+                        + "\t" + String.format("%.4f", getStdDevAccuracy(m, i)));
+            }
+        }
+    }
+
+    // Parse a comma separated list of integers, such as "10,100,500".
+    protected static int[] parseList (String list) {
+        String[] items = list.split(",");
+        int[] values = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            values[i] = Integer.parseInt(items[i].trim());
+        }
+        return values;
+    }
+
+    // Usage: ParallelCrossValidation -t <arff file> [-x folds] [-I 10,100,500] [-M 1,3,5] [-threads n] [-s seed] [-P]
+    //                               [-off-heap]
+    public static void main(String[] argv) throws Exception {
+        String file = null;
+        int numFolds = 10;
+        long seed = 1;
+        int[] Is = {100};
+        int[] Ms = {3};
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        boolean pruneAttributes = false;
+        boolean offHeap = false;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": file = argv[++i]; break;
+                case "-x": numFolds = Integer.parseInt(argv[++i]); break;
+                case "-s": seed = Long.parseLong(argv[++i]); break;
+                case "-I": Is = parseList(argv[++i]); break;
+                case "-M": Ms = parseList(argv[++i]); break;
+                case "-threads": numThreads = Integer.parseInt(argv[++i]); break;
+                case "-P": pruneAttributes = true; break;
+                case "-off-heap": offHeap = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (file == null) {
+            System.err.println("Usage: ParallelCrossValidation -t <arff file> [-x folds] [-I 10,100,500] [-M 1,3,5]"
+                    + " [-threads n] [-s seed] [-P] [-off-heap]");
+            return;
+        }
+
+        Instances data = new Instances(new BufferedReader(new FileReader(file)));
+        data.setClassIndex(data.numAttributes() - 1);
+
+        try (ParallelCrossValidation cv = new ParallelCrossValidation(data, numFolds, seed, offHeap)) {
+            cv.setIs(Is);
+            cv.setMs(Ms);
+            cv.setNumThreads(numThreads);
+            cv.setPruneAttributes(pruneAttributes);
+
+            long start = System.currentTimeMillis();
+            cv.run();
+            cv.printResults();
+            System.out.println("Time: " + (System.currentTimeMillis() - start) / 1000.0 + " s");
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package weka.classifiers.meta;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class ProductLearner extends BaseLearner{
     // Number of the base learners
@@ -11,11 +12,11 @@ public class ProductLearner extends BaseLearner{
     // Keeps all the base learners, such as Decision Stump.
     protected ArrayList<BaseLearner> m_BaseLearnersInProduct = new ArrayList<>();
 
-    // Keep the original labels, which will be restored after building classifier of Product Learner.
-    protected ArrayList<int[]> m_savedLabels = new ArrayList<>();
-
     protected double m_DoublePrecision = 0.00000001;
 
+    // The votes of the product \prod_{b}v^{(b)}_l, used with its bitset "m_phiBits". It is not saved with the model.
+    protected transient double[] m_phiVotes;
+
     public void setParameters (String nameBaseLearner, int numBaseLearners) {
         m_numBaseLearners = numBaseLearners;
         m_nameBaseLearner = nameBaseLearner;
@@ -38,7 +39,7 @@ public class ProductLearner extends BaseLearner{
         initializeClassifier(trainingInsts);
 
         // Backup all the original labels
-        backupOriginalLabels (trainingInsts);
+        trainingInsts.saveLabels();
 
         // In the first loop (ecah loop generates m base learners at most), if we find the energy increasing, we just
         // stop the current loop, and use all the previous base learners as parts of the product learner, such as:
@@ -78,26 +79,12 @@ public class ProductLearner extends BaseLearner{
             // Fixme: The last accuracy is very similar to the one with the following if statement.
             // Fixme: Don't know wht?
             if ( !firstLoop ) {
-                for (int i = 0; i < m_numInstances; i++) {
-                    int[] labels = trainingInsts.getLabels(i);
-
-                    // For each label of current instance.
-                    for (int k = 0; k < m_numClasses; k++) {
-                        if (labels[k] != 0) {
-                            // h_l(x_i)=v_l * \varphi(x_i)
-                            double hx = curBaseLearner.doClassification(trainingInsts, i, k);
-                            if (hx < 0) {
-                                labels[k] *= -1;
-                            }
-                            else if (hx == 0) {
-                                labels[k] = 0;
-                            }
-                        }
-                    }
-                }
+                relabel(trainingInsts, curBaseLearner);
             }
 
             previousBaseLearner = curBaseLearner.copyState();
+            // Only the first base learner in the first loop uses the original labels.
+            trainingInsts.setVirtualLabels(!(firstLoop && ib == 0));
             // Use previously generated labels to build a new classifier of the current base learner.
             curBaseLearner.buildClassifier(trainingInsts);
 
@@ -109,23 +96,7 @@ public class ProductLearner extends BaseLearner{
 
             // For each instance. We generate all the labels by using current classifier.
             // The instance with new labels will be used in next time (next while loop) to generate a new classifier.
-            for (int i = 0; i < m_numInstances; i++) {
-                int[] labels = trainingInsts.getLabels(i);
-
-                // For each label of current instance.
-                for (int k = 0; k < m_numClasses; k++) {
-                    if (labels[k] != 0) {
-                        // h_l(x_i)=v_l * \varphi(x_i)
-                        double hx = curBaseLearner.doClassification(trainingInsts, i, k);
-                        if (hx < 0) {
-                            labels[k] *= -1;
-                        }
-                        else if (hx == 0) {
-                            labels[k] = 0;
-                        }
-                    }
-                }
-            }
+            relabel(trainingInsts, curBaseLearner);
 
             // We only allow it happen when (m_Energy > previousEnergy) || (m_Energy == previousEnergy).
             // However, to determine whether two double values are equal, we need to use a precision, as follows:
@@ -149,10 +120,68 @@ public class ProductLearner extends BaseLearner{
             }
         }
 
-        // Restore all the original labels
-        restoreOriginalLabels (trainingInsts);
+        // Restore all the original labels, which are not needed by the model any more.
+        trainingInsts.restoreLabels();
+        trainingInsts.setVirtualLabels(false);
+        computePhiBits(trainingInsts.numInstances());
+    }
+
+    // Multiply the labels by the sign of h_l(x_i) = v_l * \varphi(x_i) of the given base learner,
+    // or set them to 0 if h_l(x_i) = 0. \varphi(x_i) is read from the bitset of the base learner.
+    private void relabel (ExtendedInstances trainingInsts, BaseLearner baseLearner) {
+        long[] phiBits = baseLearner.getPhiBits();
+        double[] v = baseLearner.getPhiVotes();
+
+        for (int i = 0; i < m_numInstances; i++) {
+            // For each label of current instance (only the kept classes in the sparse class mode).
+            for (int k = 0; k < trainingInsts.numEntries(i); k++) {
+                int label = trainingInsts.getLabel(i, k);
+                if (label != 0) {
+                    // h_l(x_i)=v_l * \varphi(x_i)
+                    double hx = classification(phiBits, v, i, trainingInsts.getEntryClass(i, k));
+                    if (hx < 0) {
+                        trainingInsts.setLabel(i, k, -label);
+                    }
+                    else if (hx == 0) {
+                        trainingInsts.setLabel(i, k, 0);
+                    }
+                }
+            }
+        }
+    }
+
+    // Compute the bitset of the product: \prod_{b}\varphi_b(x_i) is -1 if an odd number of \varphi_b(x_i) are -1, so
+    // the bits of -1 are the XOR of the bits of -1 of the base learners. The votes of the product are \prod_{b}v^{(b)}_l.
+    // The bitsets of the base learners are not needed any more, so they are released.
+    private void computePhiBits (int numInstances) {
+        long[] negativeBits = new long[(numInstances + 63) >>> 6];
+        m_phiVotes = new double[m_numClasses];
+        Arrays.fill(m_phiVotes, 1);
+
+        for (int ib = 0; ib < m_numBaseLearners; ib++) {
+            BaseLearner baseLearner = m_BaseLearnersInProduct.get(ib);
+            long[] phiBits = baseLearner.getPhiBits();
+            for (int w = 0; w < negativeBits.length; w++) {
+                negativeBits[w] ^= ~phiBits[w];
+            }
+            double[] v = baseLearner.getPhiVotes();
+            for (int k = 0; k < m_numClasses; k++) {
+                m_phiVotes[k] *= v[k];
+            }
+        }
+        for (BaseLearner baseLearner : m_BaseLearnersInProduct) {
+            baseLearner.releasePhiBits();
+        }
+
+        for (int w = 0; w < negativeBits.length; w++) {
+            negativeBits[w] = ~negativeBits[w];
+        }
+        m_phiBits = negativeBits;
     }
 
+    // The votes of the product are \prod_{b}v^{(b)}_l.
+    public double[] getPhiVotes () { return m_phiVotes; }
+
     // Classification for given instance which represented by a double array.
     // It is no need to use "ExtendedInstances" object because we just need all the attributes of instance in the classification.
     // Calculate h_l(x_i) = v_l * \varphi(x_i)
@@ -163,22 +192,18 @@ public class ProductLearner extends BaseLearner{
         return result;
     }
 
-    // Backup all the original labels
-    private void backupOriginalLabels (ExtendedInstances trainingInsts) {
-        for (int i = 0; i < m_numInstances; i++) {
-            // A temporary double array to backup all the original labels
-            int[] originalLabels = new int[m_numClasses];
-            System.arraycopy(trainingInsts.getLabels(i), 0, originalLabels, 0, m_numClasses);
-            m_savedLabels.add(originalLabels);
-        }
+    // Classification for the indexInstance-th instance of the training data.
+    // Calculate h_l(x_i) = v_l * \varphi(x_i)
+    public double doClassification(ExtendedInstances trainingInsts, int indexInstance, int indexLabel) throws Exception {
+        double result = 1;
+        for( int ib = 0; ib < m_numBaseLearners; ++ib )
+            result *= m_BaseLearnersInProduct.get(ib).doClassification(trainingInsts, indexInstance, indexLabel);
+        return result;
     }
 
-    // Restore all the orginal labels
-    private void restoreOriginalLabels (ExtendedInstances trainingInsts) {
-        for (int i = 0; i < m_numInstances; i++) {
-            System.arraycopy(m_savedLabels.get(i), 0, trainingInsts.getLabels(i), 0, m_numClasses);
-        }
-    }
+    // get the number of base learners in the product, and the ib-th one of them
+    public int getNumBaseLearners () { return m_numBaseLearners; }
+    public BaseLearner getBaseLearner (int ib) { return m_BaseLearnersInProduct.get(ib); }
 
     // Return a new ProductLearner object.
     public BaseLearner subCreate () {
@@ -0,0 +1,385 @@
+package weka.classifiers.meta;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.converters.ArffLoader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// This is a Class of a small HTTP server which scores rows with a model loaded once, on the loopback address only.
+//   POST /score: the body has one row per line (comma separated values, or a sparse ARFF row), and the response has
+//                one prediction per line, in the same format as StreamingScorer.
+//   GET  /stats: the number of requests, rows and batches, the throughput, and the p50/p99 latencies of the requests.
+// Each connection is handled by its own thread. The rows of all the concurrent requests are collected by a
+// micro-batcher for up to a short window (a few hundred microseconds), or until a batch is full, and each batch is
+// scored as one block by a pool of scoring threads, so the requests under load share the thread hand-offs.
+// The rows in the server, waiting for the batcher or in a batch not scored yet, are bounded: a request with more rows
+// than the bound gets 413, a request which does not fit next to the others gets 503 at once, and a request whose rows
+// are not scored within the timeout gets 503 and its rows are skipped, so an overloaded server answers instead of
+// queuing without limit.
+public class ScoringServer {
+    // A row waiting to be scored, and the prediction of the row
+    private static final class Request {
+        final double[] row;
+        final CompletableFuture<String> prediction = new CompletableFuture<>();
+
+        Request (double[] row) { this.row = row; }
+    }
+
+    // The model and the format of the predictions
+    protected StreamingScorer m_scorer;
+
+    protected HttpServer m_server;
+
+    // The rows waiting for the micro-batcher. A request reserves the room for all its rows in m_queuedRows before it
+    // queues any of them, and the room is given back once its batch is scored, so there are at most m_maxQueuedRows
+    // rows in the queue and in the batches of the scoring threads together.
+    protected int m_maxQueuedRows = 65536;
+    protected BlockingQueue<Request> m_requests;
+    protected Semaphore m_queuedRows;
+
+    // The time a request waits for its rows to be scored before it gets 503
+    protected long m_timeoutMillis = 10000;
+
+    // The window to collect the rows of a batch in nanoseconds, and the maximum number of rows in a batch
+    protected long m_batchWindowNanos = 200000;
+    protected int m_maxBatchSize = 256;
+
+    // Number of scoring threads
+    protected int m_numThreads = Runtime.getRuntime().availableProcessors();
+
+    protected Thread m_batcher;
+    protected ExecutorService m_scorers;
+    protected ExecutorService m_connections;
+
+    // Counters of the requests, rows and batches since the server started
+    protected AtomicLong m_numRequests = new AtomicLong();
+    protected AtomicLong m_numRows = new AtomicLong();
+    protected AtomicLong m_numBatches = new AtomicLong();
+    protected AtomicLong m_numRejected = new AtomicLong();
+    protected long m_startNanos;
+
+    // Histogram of the latencies of the requests. The bucket b counts the latencies in [GROWTH^b, GROWTH^(b+1))
+    // microseconds, so a percentile is known within 2%.
+    private static final double GROWTH = 1.02;
+    protected AtomicLongArray m_latencyBuckets = new AtomicLongArray(1024);
+
+    public ScoringServer (StreamingScorer scorer) {
+        m_scorer = scorer;
+    }
+
+    public void setBatchWindowMicros (long batchWindowMicros) { m_batchWindowNanos = batchWindowMicros * 1000; }
+
+    public void setMaxBatchSize (int maxBatchSize) { m_maxBatchSize = maxBatchSize; }
+
+    public void setNumThreads (int numThreads) { m_numThreads = numThreads; }
+
+    public void setMaxQueuedRows (int maxQueuedRows) { m_maxQueuedRows = maxQueuedRows; }
+
+    public void setTimeoutMillis (long timeoutMillis) { m_timeoutMillis = timeoutMillis; }
+
+    // Start the server on the given port of the loopback address (0 picks a free port). Returns the port.
+    public int start (int port) throws IOException {
+        // Send the small responses at once instead of waiting for the acknowledgement of the previous packet (Nagle's
+        // algorithm), which adds tens of milliseconds to a request. It is read when the first server is created.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        m_requests = new LinkedBlockingQueue<>();
+        m_queuedRows = new Semaphore(m_maxQueuedRows);
+        m_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        m_server.createContext("/score", this::handleScore);
+        m_server.createContext("/stats", this::handleStats);
+
+        m_connections = Executors.newCachedThreadPool();
+        m_scorers = Executors.newFixedThreadPool(m_numThreads);
+        m_server.setExecutor(m_connections);
+
+        m_batcher = new Thread(this::batchRequests, "ScoringServer-batcher");
+        m_batcher.setDaemon(true);
+        m_batcher.start();
+
+        m_startNanos = System.nanoTime();
+        m_server.start();
+        return m_server.getAddress().getPort();
+    }
+
+    public void stop () {
+        m_server.stop(0);
+        m_batcher.interrupt();
+        m_scorers.shutdownNow();
+        m_connections.shutdownNow();
+    }
+
+    // Collect the waiting rows into batches: a batch starts with the first row which arrives, and takes the rows which
+    // arrive within the window after it, up to the maximum size.
+    private void batchRequests () {
+        try {
+            while (true) {
+                List<Request> batch = new ArrayList<>(m_maxBatchSize);
+                batch.add(m_requests.take());
+
+                long deadline = System.nanoTime() + m_batchWindowNanos;
+                while (batch.size() < m_maxBatchSize) {
+                    m_requests.drainTo(batch, m_maxBatchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= m_maxBatchSize || wait <= 0) {
+                        break;
+                    }
+                    Request request = m_requests.poll(wait, TimeUnit.NANOSECONDS);
+                    if (request == null) {
+                        break;
+                    }
+                    batch.add(request);
+                }
+
+                m_numBatches.incrementAndGet();
+                m_scorers.execute(() -> scoreBatch(batch));
+            }
+        } catch (InterruptedException e) {
+            // The server has stopped.
+        }
+    }
+
+    // Score all the rows of a batch as one block (see StreamingScorer.Model.distributions). The rows of the requests
+    // which timed out are skipped.
+    private void scoreBatch (List<Request> batch) {
+        try {
+            List<Request> live = new ArrayList<>(batch.size());
+            for (Request request : batch) {
+                if (!request.prediction.isDone()) {
+                    live.add(request);
+                }
+            }
+            if (live.isEmpty()) {
+                return;
+            }
+
+            double[][] rows = new double[live.size()][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = live.get(i).row;
+            }
+
+            double[][] distributions;
+            try {
+                distributions = m_scorer.m_model.distributions(rows);
+            } catch (Throwable e) {
+                for (Request request : live) {
+                    request.prediction.completeExceptionally(e);
+                }
+                return;
+            }
+
+            StringBuilder prediction = new StringBuilder(64);
+            for (int i = 0; i < rows.length; i++) {
+                prediction.setLength(0);
+                m_scorer.appendPrediction(prediction, distributions[i]);
+                live.get(i).prediction.complete(prediction.toString());
+            }
+        } finally {
+            m_queuedRows.release(batch.size());
+        }
+    }
+
+    private void handleScore (HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Use POST with one row per line.\n");
+                return;
+            }
+
+            List<Request> requests = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        requests.add(new Request(StreamingScorer.parseRow(line, m_scorer.m_numAttrs)));
+                    }
+                }
+            }
+            // Reserve the room for all the rows before queuing any of them, so a rejected request leaves nothing
+            // in the queue. A request larger than the queue can never fit.
+            if (requests.size() > m_maxQueuedRows) {
+                m_numRejected.incrementAndGet();
+                respond(exchange, 413, "The request has " + requests.size() + " rows, the server takes at most "
+                        + m_maxQueuedRows + ".\n");
+                return;
+            }
+            if (!m_queuedRows.tryAcquire(requests.size())) {
+                m_numRejected.incrementAndGet();
+                respond(exchange, 503, "The server is overloaded, retry later.\n");
+                return;
+            }
+            m_requests.addAll(requests);
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_timeoutMillis);
+            StringBuilder predictions = new StringBuilder(requests.size() * 16);
+            try {
+                for (Request request : requests) {
+                    predictions.append(request.prediction.get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS));
+                }
+            } catch (TimeoutException e) {
+                // Cancel the rows which are not scored yet, so the scoring threads skip them.
+                for (Request request : requests) {
+                    request.prediction.cancel(false);
+                }
+                m_numRejected.incrementAndGet();
+                respond(exchange, 503, "The rows were not scored within " + m_timeoutMillis + " ms, retry later.\n");
+                return;
+            }
+            respond(exchange, 200, predictions.toString());
+
+            m_numRequests.incrementAndGet();
+            m_numRows.addAndGet(requests.size());
+            recordLatency(System.nanoTime() - start);
+        } catch (Exception e) {
+            respond(exchange, 500, "Failed to score the rows: " + e + "\n");
+        }
+    }
+
+    private void handleStats (HttpExchange exchange) throws IOException {
+        respond(exchange, 200, getStats());
+    }
+
+    private static void respond (HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private void recordLatency (long nanos) {
+        double micros = Math.max(1, nanos / 1000.0);
+        int bucket = (int)(Math.log(micros) / Math.log(GROWTH));
+        m_latencyBuckets.incrementAndGet(Math.min(bucket, m_latencyBuckets.length() - 1));
+    }
+
+    // get the given percentile (in [0, 100]) of the latencies of the requests in microseconds, or 0 if there is none
+    public double getLatencyPercentile (double percentile) {
+        long total = 0;
+        for (int b = 0; b < m_latencyBuckets.length(); b++) {
+            total += m_latencyBuckets.get(b);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(percentile / 100 * total);
+        long count = 0;
+        for (int b = 0; b < m_latencyBuckets.length(); b++) {
+            count += m_latencyBuckets.get(b);
+            if (count >= Math.max(1, rank)) {
+                // The upper bound of the bucket
+                return Math.pow(GROWTH, b + 1);
+            }
+        }
+        return Math.pow(GROWTH, m_latencyBuckets.length());
+    }
+
+    // The counters of the server, one per line
+    public String getStats () {
+        double seconds = (System.nanoTime() - m_startNanos) / 1e9;
+        long numRows = m_numRows.get();
+        long numBatches = m_numBatches.get();
+        return "requests " + m_numRequests.get() + "\n"
+                + "rows " + numRows + "\n"
+                + "batches " + numBatches + "\n"
+                + "rejected " + m_numRejected.get() + "\n"
+                + "rows_per_batch " + String.format("%.2f", numBatches == 0 ? 0 : (double)numRows / numBatches) + "\n"
+                + "rows_per_second " + String.format("%.1f", numRows / Math.max(seconds, 1e-9)) + "\n"
+                + "latency_p50_us " + String.format("%.0f", getLatencyPercentile(50)) + "\n"
+                + "latency_p99_us " + String.format("%.0f", getLatencyPercentile(99)) + "\n";
+    }
+
+    // Usage: ScoringServer -l <model file> [-port 8080] [-window 200] [-batch 256] [-threads n]
+    //                     [-queue 65536] [-timeout 10000] [-header <arff file>] [-p] [-gen]
+    // -window is the micro-batching window in microseconds. -queue is the maximum number of rows waiting to be
+    // scored (a request with more rows gets 413), and -timeout the time in milliseconds a request waits for its
+    // predictions, after which it gets 503. -gen scores with a GeneratedScorer. The header gives the class attribute
+    // when the model does not keep the header of its training data. The server only listens on the loopback address,
+    // for example:
+    //   curl --data-binary @rows.csv http://127.0.0.1:8080/score
+    public static void main(String[] argv) throws Exception {
+        String modelFile = null;
+        String headerFile = null;
+        int port = 8080;
+        long windowMicros = 200;
+        int batchSize = 256;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int maxQueuedRows = 65536;
+        long timeoutMillis = 10000;
+        boolean printDistribution = false;
+        boolean generate = false;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-l": modelFile = argv[++i]; break;
+                case "-port": port = Integer.parseInt(argv[++i]); break;
+                case "-window": windowMicros = Long.parseLong(argv[++i]); break;
+                case "-batch": batchSize = Integer.parseInt(argv[++i]); break;
+                case "-threads": numThreads = Integer.parseInt(argv[++i]); break;
+                case "-queue": maxQueuedRows = Integer.parseInt(argv[++i]); break;
+                case "-timeout": timeoutMillis = Long.parseLong(argv[++i]); break;
+                case "-header": headerFile = argv[++i]; break;
+                case "-p": printDistribution = true; break;
+                case "-gen": generate = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (modelFile == null) {
+            System.err.println("Usage: ScoringServer -l <model file> [-port 8080] [-window 200] [-batch 256]"
+                    + " [-threads n] [-queue 65536] [-timeout 10000] [-header <arff file>] [-p] [-gen]");
+            return;
+        }
+
+        Attribute classAttribute = null;
+        int numAttrs = 0;
+        if (headerFile != null) {
+            ArffLoader loader = new ArffLoader();
+            loader.setFile(new File(headerFile));
+            Instances structure = loader.getStructure();
+            classAttribute = structure.attribute(structure.numAttributes() - 1);
+            numAttrs = structure.numAttributes();
+        }
+
+        StreamingScorer scorer = StreamingScorer.load(modelFile, classAttribute, numAttrs, generate);
+        scorer.setPrintDistribution(printDistribution);
+
+        ScoringServer server = new ScoringServer(scorer);
+        server.setBatchWindowMicros(windowMicros);
+        server.setMaxBatchSize(batchSize);
+        server.setNumThreads(numThreads);
+        server.setMaxQueuedRows(maxQueuedRows);
+        server.setTimeoutMillis(timeoutMillis);
+        int boundPort = server.start(port);
+        System.err.println("Scoring on http://127.0.0.1:" + boundPort + "/score (stats on /stats)");
+    }
+}
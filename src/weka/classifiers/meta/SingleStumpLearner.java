@@ -1,8 +1,8 @@
 package weka.classifiers.meta;
 
 public class SingleStumpLearner extends BaseLearner {
-    // An algorithm to get the best stump of decision stump
-    protected StumpAlgorithm m_stumpAlgo;
+    // An algorithm to get the best stump of decision stump. It is only used in training, so it is not saved.
+    protected transient StumpAlgorithm m_stumpAlgo;
 
     // Use to determine whether two double variables are equal.
     protected double m_DoublePrecision = 0.00000001;
@@ -19,7 +19,7 @@ public class SingleStumpLearner extends BaseLearner {
         initializeClassifier(trainingInsts);
 
         // Set the smoothing value when computing alpha
-        setSmoothingVal( 1.0 / m_numInstances * 0.01);
+        setSmoothingVal( 1.0 / trainingInsts.numActiveInstances() * 0.01);
 
         // Calculate the initial values of half gamma/edge (that is weights edges).
         m_stumpAlgo.initHalfEdge();
@@ -28,15 +28,66 @@ public class SingleStumpLearner extends BaseLearner {
         // We need to minimize the energy, so we initialize it with the maximum of double.
         double bestEnergy = Double.MAX_VALUE;
 
+        // The bounds used to skip the attributes which can not beat the best energy currently found.
+        // It is null if the pruning is disabled.
+        AttributeEdgeBounds edgeBounds = trainingInsts.getEdgeBounds();
+        if (edgeBounds != null) {
+            edgeBounds.update(trainingInsts);
+        }
+
+        // The attributes deactivated by the adaptive pruning are skipped. It is null if the adaptive pruning is
+        // disabled. If all the searched attributes are inactive (e.g. the sample of the time budget only has inactive
+        // ones), they are scanned anyway, otherwise the stump would stay on attribute 0 with zero votes.
+        AttributeActivity activity = trainingInsts.getAttributeActivity();
+        boolean skipInactive = false;
+        if (activity != null) {
+            activity.startSearch(m_stumpAlgo.getInitHalfEdge());
+            skipInactive = activity.hasActive(trainingInsts);
+        }
+        // The best half edge of the selected attribute
+        double bestHalfEdge = 0;
+
         // Iterate all the sorting possibilities of the instances, which are sorted by each attribute respectively, to
         // find a best stump of each iteration. Then find the best of best stumps from these results.
+        // Attributes are visited in the same order as the exhaustive search, because an attribute only replaces the
+        // best one when its energy is smaller by more than m_DoublePrecision, and this order decides the ties.
+        // An attribute is skipped only when it could not replace the best one even with the bound of its half edge,
+        // so the result is identical to the exhaustive search.
         for (int j = 0; j < m_numAttrs; j++) {
+            // Read ahead the next column while this one is scanned, if the columns are on disk.
+            trainingInsts.prefetchColumn(j + 1);
+
+            if (!trainingInsts.isSampled(j)) {
+                continue;
+            }
+
+            if (skipInactive && !activity.isActive(j)) {
+                activity.setSkipped(j);
+                continue;
+            }
+
+            if (edgeBounds != null) {
+                double boundHalfEdge = edgeBounds.getBound(j);
+                double boundEnergy = getEnergy(0.5 + boundHalfEdge, 0.5 - boundHalfEdge);
+                if ((bestEnergy - boundEnergy) <= m_DoublePrecision) {
+                    edgeBounds.setPruned(j);
+                    continue;
+                }
+            }
+
             double[] tmpV = new double[m_numClasses];        // This is temp vote vector V.
             double[] tmphalfEdge = new double[1];             // This is temp \gamma, also named edge, which we need to maximize.
 
             // Get the best split point of all the instances sorted by an i-th attribute.
             // Acquire the temp threshold (tmpThreshold), temp vote vector (tmpV), and temp half edge (tmphalfEdge).
+            long scanStart = (activity != null) ? System.nanoTime() : 0;
             double tmpThreshold = m_stumpAlgo.findBestStumpOfSpecificAttr(j, tmpV, tmphalfEdge);
+            if (edgeBounds != null) {
+                edgeBounds.setScanned(j, m_stumpAlgo.getMaxHalfEdge());
+            }
+            if (activity != null) {
+                activity.setScanned(j, tmphalfEdge[0], System.nanoTime() - scanStart);
+            }
 
             // Get temp \alpha (tmpAlpha) and temp energy (tmpEnergy).
             double eps_pls = 0.5 + tmphalfEdge[0];             // This is \frac{1+\gamma}{2}, tmphalfEdge had already divided by 2.
@@ -56,11 +107,32 @@ public class SingleStumpLearner extends BaseLearner {
                 m_threshold = tmpThreshold;
 
                 bestEnergy = tmpEnergy;
+                bestHalfEdge = tmphalfEdge[0];
             }
         }
 
+        if (activity != null) {
+            activity.endSearch(bestHalfEdge);
+        }
+
         // Just to use to select the minimum in the Product Learner.
         m_Energy = bestEnergy;
+
+        computePhiBits(trainingInsts);
+    }
+
+    // Compute \varphi(x_i) of all the training instances as a bitset, from the stored values of the selected attribute.
+    protected void computePhiBits (ExtendedInstances trainingInsts) {
+        int numInstances = trainingInsts.numInstances();
+        AttributeColumn column = trainingInsts.getColumn(m_selectedAttr);
+
+        long[] phiBits = new long[(numInstances + 63) >>> 6];
+        for (int i = 0; i < numInstances; i++) {
+            if (column.value(i) > m_threshold) {
+                phiBits[i >>> 6] |= 1L << i;
+            }
+        }
+        m_phiBits = phiBits;
     }
 
     // Classification for given instance which represented by a double array.
@@ -76,6 +148,18 @@ public class SingleStumpLearner extends BaseLearner {
         return v_l * retPhi;
     }
 
+    // Classification for the indexInstance-th instance of the training data.
+    // Calculate h_l(x_i) = v_l * \varphi(x_i)
+    public double doClassification(ExtendedInstances trainingInsts, int indexInstance, int indexLabel) throws Exception {
+        double v_l = m_V[indexLabel];     // v_l
+
+        // \varphi(x_i)
+        double attrValue = trainingInsts.getAttrValue(indexInstance, m_selectedAttr);
+        double retPhi = phi(attrValue);
+
+        return v_l * retPhi;
+    }
+
     // Return a new SingleStumpLearner object.
     public BaseLearner subCreate () {
         return new SingleStumpLearner();
@@ -0,0 +1,120 @@
+package weka.classifiers.meta;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// This is a Class to score instances with compact vote vectors, used in the sparse class mode when there are many classes.
+// Each term of the strong learner is \alpha*\Phi(x)*c_l with c_l = \prod_{b}v^{(b)}_l in {-1, +1}. Most of the K
+// classes get the same vote, so c is kept as its majority sign d and the few classes voting -d. Then:
+// f_l(x) = \sum_{t}\alpha^{(t)}\Phi^{(t)}(x)d^{(t)} - 2\sum_{t: l votes -d^{(t)}}\alpha^{(t)}\Phi^{(t)}(x)
+// So scoring an instance costs the number of stumps plus the number of minority votes, plus K once, instead of
+// K times the number of stumps in AdaBoostMH.distributionForInstance.
+// The scores are the same except the rounding of the sums, which are taken in another order.
+public class SparseVoteScorer {
+    // The stumps of each term: the attributes and thresholds of term t are in [m_stumpStarts[t], m_stumpStarts[t + 1])
+    protected int[] m_stumpStarts;
+    protected int[] m_stumpAttrs;
+    protected double[] m_stumpThresholds;
+
+    // \alpha times the majority vote d of each term
+    protected double[] m_alphaVotes;
+
+    // The classes voting against the majority: the ones of term t are in [m_minorityStarts[t], m_minorityStarts[t + 1])
+    protected int[] m_minorityStarts;
+    protected int[] m_minorityClasses;
+
+    protected int m_numClasses;
+
+    // Build the scorer with the first numBaseLearners base learners.
+    public SparseVoteScorer (ArrayList<BaseLearner> baseLearners, int numBaseLearners, int numClasses) {
+        m_numClasses = numClasses;
+        m_stumpStarts = new int[numBaseLearners + 1];
+        m_minorityStarts = new int[numBaseLearners + 1];
+        m_alphaVotes = new double[numBaseLearners];
+
+        ArrayList<BaseLearner> stumps = new ArrayList<>();
+        ArrayList<Integer> minorityClasses = new ArrayList<>();
+        for (int t = 0; t < numBaseLearners; t++) {
+            BaseLearner baseLearner = baseLearners.get(t);
+
+            ArrayList<BaseLearner> factors = new ArrayList<>();
+            if (baseLearner instanceof ProductLearner) {
+                ProductLearner product = (ProductLearner)baseLearner;
+                for (int ib = 0; ib < product.getNumBaseLearners(); ib++) {
+                    factors.add(product.getBaseLearner(ib));
+                }
+            }
+            else {
+                factors.add(baseLearner);
+            }
+            stumps.addAll(factors);
+            m_stumpStarts[t + 1] = stumps.size();
+
+            // c_l = \prod_{b}v^{(b)}_l
+            double[] votes = new double[numClasses];
+            Arrays.fill(votes, 1);
+            for (BaseLearner factor : factors) {
+                double[] v = factor.getVoteVector();
+                for (int l = 0; l < numClasses; l++) {
+                    votes[l] *= v[l];
+                }
+            }
+
+            int numPositive = 0;
+            for (int l = 0; l < numClasses; l++) {
+                if (votes[l] > 0) {
+                    numPositive++;
+                }
+            }
+            double majority = (2 * numPositive >= numClasses) ? 1 : -1;
+            for (int l = 0; l < numClasses; l++) {
+                if (votes[l] != majority) {
+                    minorityClasses.add(l);
+                }
+            }
+            m_minorityStarts[t + 1] = minorityClasses.size();
+            m_alphaVotes[t] = baseLearner.getAlpha() * majority;
+        }
+
+        m_stumpAttrs = new int[stumps.size()];
+        m_stumpThresholds = new double[stumps.size()];
+        for (int b = 0; b < stumps.size(); b++) {
+            m_stumpAttrs[b] = stumps.get(b).getSelectedAttr();
+            m_stumpThresholds[b] = stumps.get(b).getThreshold();
+        }
+        m_minorityClasses = new int[minorityClasses.size()];
+        for (int a = 0; a < m_minorityClasses.length; a++) {
+            m_minorityClasses[a] = minorityClasses.get(a);
+        }
+    }
+
+    // Compute the scores f_l(x) of the given instance represented by a double array.
+    public double[] scores (double[] testInst) {
+        double[] scores = new double[m_numClasses];
+        double commonScore = 0;
+
+        for (int t = 0; t < m_alphaVotes.length; t++) {
+            // \Phi(x) = \prod_{b}\varphi_b(x), the same as BaseLearner.phi
+            boolean negative = false;
+            for (int b = m_stumpStarts[t]; b < m_stumpStarts[t + 1]; b++) {
+                negative ^= !(testInst[m_stumpAttrs[b]] > m_stumpThresholds[b]);
+            }
+
+            double termScore = negative ? -m_alphaVotes[t] : m_alphaVotes[t];
+            commonScore += termScore;
+            for (int a = m_minorityStarts[t]; a < m_minorityStarts[t + 1]; a++) {
+                scores[m_minorityClasses[a]] -= 2 * termScore;
+            }
+        }
+
+        for (int l = 0; l < m_numClasses; l++) {
+            scores[l] += commonScore;
+        }
+        return scores;
+    }
+
+    public int numTerms () { return m_alphaVotes.length; }
+
+    // get the number of votes kept against the majority of their terms, out of numTerms() * K
+    public int numMinorityVotes () { return m_minorityClasses.length; }
+}
@@ -0,0 +1,333 @@
+package weka.classifiers.meta;
+
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.converters.ArffLoader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// This is a Class to score a large ARFF or CSV file with a saved model, from file to file, without loading the data.
+// The pipeline has 3 stages:
+//   reader:  one thread reads the lines of the file and groups them into batches.
+//   workers: a pool of threads parses the lines of each batch, scores them and formats the predictions.
+//   writer:  the calling thread writes the predictions of the batches in the input order.
+// The batches are passed to the writer through a bounded queue of futures, so the reader waits when the workers or
+// the writer fall behind, and at most (queue size + number of threads) batches are in memory at any time.
+public class StreamingScorer {
+    // A model which gives the probability distribution of a row
+    public interface Model {
+        double[] distribution (double[] values) throws Exception;
+
+        // The distributions of a block of rows, which a model may score together. By default, row by row.
+        default double[][] distributions (double[][] rows) throws Exception {
+            double[][] distributions = new double[rows.length][];
+            for (int i = 0; i < rows.length; i++) {
+                distributions[i] = distribution(rows[i]);
+            }
+            return distributions;
+        }
+    }
+
+    protected Model m_model;
+
+    // Names of the classes, or null if only the indices are known
+    protected String[] m_classNames;
+
+    // Number of attributes (including the class) of a row, used to fill the values omitted in a sparse row.
+    protected int m_numAttrs;
+
+    // Number of rows in each batch
+    protected int m_batchSize = 1024;
+
+    // Number of scoring threads
+    protected int m_numThreads = Runtime.getRuntime().availableProcessors();
+
+    // Whether to write the probability of each class after the predicted class
+    protected boolean m_printDistribution = false;
+
+    // Number of rows scored by the last run
+    protected long m_numRows;
+
+    public StreamingScorer (Model model, String[] classNames, int numAttrs) {
+        m_model = model;
+        m_classNames = classNames;
+        m_numAttrs = numAttrs;
+    }
+
+    public void setBatchSize (int batchSize) { m_batchSize = batchSize; }
+
+    public void setNumThreads (int numThreads) { m_numThreads = numThreads; }
+
+    public void setPrintDistribution (boolean printDistribution) { m_printDistribution = printDistribution; }
+
+    public long getNumRows () { return m_numRows; }
+
+    // Score the rows read from the reader, which is positioned at the first data line, and write the predictions.
+    // Empty lines and comments ('%' in ARFF, '#' in CSV) are skipped.
+    public void score (BufferedReader reader, Writer writer) throws Exception {
+        BlockingQueue<Future<String>> batches = new ArrayBlockingQueue<>(2 * m_numThreads);
+        ExecutorService workers = Executors.newFixedThreadPool(m_numThreads);
+
+        Thread readerThread = new Thread(() -> readBatches(reader, batches, workers), "StreamingScorer-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        m_numRows = 0;
+        try {
+            // The end of the input is marked by a batch of null.
+            String predictions;
+            while ((predictions = batches.take().get()) != null) {
+                writer.write(predictions);
+            }
+            writer.flush();
+        } finally {
+            workers.shutdownNow();
+            readerThread.interrupt();
+        }
+    }
+
+    // Read the lines in batches, and submit each batch to the workers. The futures are queued in the input order.
+    private void readBatches (BufferedReader reader, BlockingQueue<Future<String>> batches, ExecutorService workers) {
+        try {
+            String[] lines = new String[m_batchSize];
+            int numLines = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("%") || line.startsWith("#")) {
+                    continue;
+                }
+                lines[numLines++] = line;
+                if (numLines == m_batchSize) {
+                    final String[] batch = lines;
+                    batches.put(workers.submit(() -> scoreBatch(batch, m_batchSize)));
+                    lines = new String[m_batchSize];
+                    numLines = 0;
+                }
+            }
+            if (numLines > 0) {
+                final String[] batch = lines;
+                final int batchSize = numLines;
+                batches.put(workers.submit(() -> scoreBatch(batch, batchSize)));
+            }
+            batches.put(CompletableFuture.completedFuture(null));
+        } catch (InterruptedException e) {
+            // The writer has stopped.
+        } catch (Exception e) {
+            // Wait for room in the queue, so that the writer always gets the failure after the queued batches.
+            CompletableFuture<String> failure = new CompletableFuture<>();
+            failure.completeExceptionally(e);
+            try {
+                batches.put(failure);
+            } catch (InterruptedException interrupted) {
+                // The writer has stopped.
+            }
+        }
+    }
+
+    // Parse, score and format the first numLines lines of a batch.
+    private String scoreBatch (String[] lines, int numLines) throws Exception {
+        StringBuilder predictions = new StringBuilder(numLines * (m_printDistribution ? 64 : 8));
+        for (int i = 0; i < numLines; i++) {
+            appendPrediction(predictions, m_model.distribution(parseRow(lines[i], m_numAttrs)));
+        }
+        synchronized (this) {
+            m_numRows += numLines;
+        }
+        return predictions.toString();
+    }
+
+    // Append the predicted class of a distribution (and the probabilities if they are printed) as a line.
+    protected void appendPrediction (StringBuilder predictions, double[] distribution) {
+        int predicted = 0;
+        for (int l = 1; l < distribution.length; l++) {
+            if (distribution[l] > distribution[predicted]) {
+                predicted = l;
+            }
+        }
+
+        predictions.append(m_classNames == null ? Integer.toString(predicted) : m_classNames[predicted]);
+        if (m_printDistribution) {
+            for (double probability : distribution) {
+                predictions.append(',').append(probability);
+            }
+        }
+        predictions.append('\n');
+    }
+
+    // Parse a row of comma separated values, or a sparse ARFF row such as "{0 1.5,3 2}" with at least numAttrs values.
+    // Missing ("?") and non-numeric values (such as the class label) are parsed as NaN.
+    protected static double[] parseRow (String line, int numAttrs) {
+        if (line.startsWith("{")) {
+            String[] pairs = line.substring(1, line.length() - 1).split(",");
+            int numValues = 0;
+            int[] indices = new int[pairs.length];
+            double[] values = new double[pairs.length];
+            for (String pair : pairs) {
+                pair = pair.trim();
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                int space = pair.indexOf(' ');
+                indices[numValues] = Integer.parseInt(pair.substring(0, space));
+                values[numValues] = parseValue(pair.substring(space + 1).trim());
+                numValues++;
+            }
+
+            double[] row = new double[Math.max(numAttrs, numValues == 0 ? 0 : indices[numValues - 1] + 1)];
+            for (int v = 0; v < numValues; v++) {
+                row[indices[v]] = values[v];
+            }
+            return row;
+        }
+
+        String[] items = line.split(",");
+        double[] row = new double[items.length];
+        for (int j = 0; j < items.length; j++) {
+            row[j] = parseValue(items[j].trim());
+        }
+        return row;
+    }
+
+    private static double parseValue (String item) {
+        try {
+            return Double.parseDouble(item);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Usage: StreamingScorer -l <model file> -i <arff or csv file> -o <output file> [-threads n] [-batch 1024] [-p]
+    //                       [-gen]
+    // The model file is an AdaBoostMH classifier saved by Weka (-d), or a CompactModel. With -gen, an AdaBoostMH
+    // classifier is compiled into a GeneratedScorer first.
+    // The attributes of a row must be in the same order as in the training data. A CSV file starts with a header line.
+    public static void main(String[] argv) throws Exception {
+        String modelFile = null;
+        String inputFile = null;
+        String outputFile = null;
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        int batchSize = 1024;
+        boolean printDistribution = false;
+        boolean generate = false;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-l": modelFile = argv[++i]; break;
+                case "-i": inputFile = argv[++i]; break;
+                case "-o": outputFile = argv[++i]; break;
+                case "-threads": numThreads = Integer.parseInt(argv[++i]); break;
+                case "-batch": batchSize = Integer.parseInt(argv[++i]); break;
+                case "-p": printDistribution = true; break;
+                case "-gen": generate = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (modelFile == null || inputFile == null || outputFile == null) {
+            System.err.println("Usage: StreamingScorer -l <model file> -i <arff or csv file> -o <output file>"
+                    + " [-threads n] [-batch 1024] [-p] [-gen]");
+            return;
+        }
+
+        boolean isArff = inputFile.toLowerCase().endsWith(".arff");
+
+        // The class attribute of the ARFF file is used when the model does not keep the header of its training data.
+        Attribute classAttribute = null;
+        int numAttrs = 0;
+        if (isArff) {
+            ArffLoader loader = new ArffLoader();
+            loader.setFile(new File(inputFile));
+            Instances structure = loader.getStructure();
+            classAttribute = structure.attribute(structure.numAttributes() - 1);
+            numAttrs = structure.numAttributes();
+        }
+
+        StreamingScorer scorer = load(modelFile, classAttribute, numAttrs, generate);
+        scorer.setNumThreads(numThreads);
+        scorer.setBatchSize(batchSize);
+        scorer.setPrintDistribution(printDistribution);
+
+        long start = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 20);
+             Writer writer = new BufferedWriter(new FileWriter(outputFile), 1 << 20)) {
+            skipHeader(reader, isArff);
+            scorer.score(reader, writer);
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        System.err.println("Scored " + scorer.getNumRows() + " rows in " + seconds + " s ("
+                + String.format("%.0f", scorer.getNumRows() / Math.max(seconds, 1e-3)) + " rows/s)");
+    }
+
+    // Load a model file, which is an AdaBoostMH classifier saved by Weka or a CompactModel, to score rows.
+    // The given class attribute and number of attributes (which may be null and 0) are used when the model does not keep
+    // the header of its training data.
+    public static StreamingScorer load (String modelFile, Attribute classAttribute, int numAttrs) throws Exception {
+        return load(modelFile, classAttribute, numAttrs, false);
+    }
+
+    // Load a model file as above. If "generate" is true, an AdaBoostMH classifier is scored with a GeneratedScorer,
+    // which gives the same predictions with a lower latency.
+    public static StreamingScorer load (String modelFile, Attribute classAttribute, int numAttrs, boolean generate)
+            throws Exception {
+        Object object = SerializationHelper.read(modelFile);
+        Model model;
+        if (object instanceof AdaBoostMH) {
+            AdaBoostMH booster = (AdaBoostMH)object;
+            if (booster.getHeader() != null) {
+                classAttribute = booster.getHeader().classAttribute();
+                numAttrs = booster.getHeader().numAttributes();
+            }
+            if (classAttribute == null || !classAttribute.isNominal()) {
+                throw new Exception("The number of classes is unknown, give an ARFF file with the class attribute.");
+            }
+            int numClasses = classAttribute.numValues();
+            if (generate) {
+                GeneratedScorer generatedScorer = new GeneratedScorer(booster, numClasses);
+                model = generatedScorer::distributionForInstance;
+            }
+            else {
+                model = values -> booster.distributionForInstance(values, numClasses);
+            }
+        }
+        else if (object instanceof CompactModel) {
+            CompactModel compactModel = (CompactModel)object;
+            model = compactModel::distributionForInstance;
+        }
+        else {
+            throw new Exception("Unknown model: " + object.getClass().getName());
+        }
+
+        String[] classNames = null;
+        if (classAttribute != null && classAttribute.isNominal()) {
+            classNames = new String[classAttribute.numValues()];
+            for (int l = 0; l < classNames.length; l++) {
+                classNames[l] = classAttribute.value(l);
+            }
+        }
+
+        return new StreamingScorer(model, classNames, numAttrs);
+    }
+
+    // Skip the header of the file: the lines until "@data" in an ARFF file, or the first line in a CSV file.
+    private static void skipHeader (BufferedReader reader, boolean isArff) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!isArff || line.trim().toLowerCase().startsWith("@data")) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package weka.classifiers.meta;
+
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.converters.ArffLoader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+
+// This is a Class to train AdaBoostMH on a stream of training data which does not fit in one ExtendedInstances.
+// The instances are read one by one into chunks of a fixed size. Each chunk is sorted and weighted on its own: its
+// weights are the ones boosting would have given it with the current model (see AdaBoostMH.replayMargins), then a few
+// iterations are performed on it before it is dropped for the next chunk. So the memory is bounded by the size of a
+// chunk, and the model keeps improving as the data flows in. The last chunk may be smaller, and it is released at the
+// end of the stream.
+public class StreamingTrainer {
+    protected AdaBoostMH m_booster;
+
+    // Number of instances in each chunk, and number of boosting iterations performed on each chunk
+    protected int m_chunkSize = 10000;
+    protected int m_iterationsPerChunk = 20;
+
+    // The data to report the accuracy after each chunk, or null
+    protected Instances m_testData;
+
+    // Number of chunks and instances trained on so far
+    protected int m_numChunks;
+    protected long m_numInstances;
+
+    public StreamingTrainer (AdaBoostMH booster) {
+        m_booster = booster;
+    }
+
+    public void setChunkSize (int chunkSize) { m_chunkSize = chunkSize; }
+
+    public void setIterationsPerChunk (int iterationsPerChunk) { m_iterationsPerChunk = iterationsPerChunk; }
+
+    public void setTestData (Instances testData) { m_testData = testData; }
+
+    // Train on all the instances of the given loader, whose class is the last attribute.
+    public void train (ArffLoader loader) throws Exception {
+        Instances structure = loader.getStructure();
+        structure.setClassIndex(structure.numAttributes() - 1);
+
+        Instances chunk = new Instances(structure, m_chunkSize);
+        Instance instance;
+        while ((instance = loader.getNextInstance(structure)) != null) {
+            chunk.add(instance);
+            if (chunk.numInstances() == m_chunkSize) {
+                trainOnChunk(chunk);
+                chunk = new Instances(structure, m_chunkSize);
+            }
+        }
+        if (chunk.numInstances() > 0) {
+            trainOnChunk(chunk);
+        }
+
+        // The last chunk is not needed by the model: report the training and release it.
+        if (m_numChunks > 0) {
+            m_booster.done();
+            m_booster.releaseTrainingData();
+        }
+    }
+
+    // Train on one chunk, and print the progress.
+    protected void trainOnChunk (Instances chunk) throws Exception {
+        long start = System.currentTimeMillis();
+        m_booster.trainOnChunk(chunk, m_iterationsPerChunk);
+        m_numChunks++;
+        m_numInstances += chunk.numInstances();
+
+        String progress = "Chunk " + m_numChunks + ": " + m_numInstances + " instances, "
+                + m_booster.getNumIterationsPerformed() + " iterations, "
+                + (System.currentTimeMillis() - start) / 1000.0 + " s";
+        if (m_testData != null) {
+            progress += ", accuracy " + String.format("%.4f", accuracy(m_testData));
+        }
+        System.err.println(progress);
+    }
+
+    // The accuracy of the current model on the given data
+    public double accuracy (Instances data) throws Exception {
+        int numCorrect = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            if (Utils.maxIndex(m_booster.distributionForInstance(instance)) == (int)instance.classValue()) {
+                numCorrect++;
+            }
+        }
+        return (double)numCorrect / Math.max(1, data.numInstances());
+    }
+
+    public int getNumChunks () { return m_numChunks; }
+
+    public long getNumInstances () { return m_numInstances; }
+
+    // Usage: StreamingTrainer -t <train arff> [-chunk 10000] [-iterations 20] [-M 3] [-T <test arff>] [-d <model file>]
+    // -iterations is the number of boosting iterations per chunk. The model is saved as an AdaBoostMH classifier,
+    // which can be scored by StreamingScorer.
+    public static void main(String[] argv) throws Exception {
+        String trainFile = null;
+        String testFile = null;
+        String modelFile = null;
+        int chunkSize = 10000;
+        int iterationsPerChunk = 20;
+        AdaBoostMH booster = new AdaBoostMH();
+        booster.setPrintProgress(false);
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-t": trainFile = argv[++i]; break;
+                case "-T": testFile = argv[++i]; break;
+                case "-d": modelFile = argv[++i]; break;
+                case "-chunk": chunkSize = Integer.parseInt(argv[++i]); break;
+                case "-iterations": iterationsPerChunk = Integer.parseInt(argv[++i]); break;
+                case "-M": booster.setM(Integer.parseInt(argv[++i])); break;
+                default: throw new IllegalArgumentException("Unknown option: " + argv[i]);
+            }
+        }
+        if (trainFile == null) {
+            System.err.println("Usage: StreamingTrainer -t <train arff> [-chunk 10000] [-iterations 20] [-M 3]"
+                    + " [-T <test arff>] [-d <model file>]");
+            return;
+        }
+
+        StreamingTrainer trainer = new StreamingTrainer(booster);
+        trainer.setChunkSize(chunkSize);
+        trainer.setIterationsPerChunk(iterationsPerChunk);
+        if (testFile != null) {
+            Instances test = new Instances(new BufferedReader(new FileReader(testFile)));
+            test.setClassIndex(test.numAttributes() - 1);
+            trainer.setTestData(test);
+        }
+
+        ArffLoader loader = new ArffLoader();
+        loader.setFile(new File(trainFile));
+        trainer.train(loader);
+
+        if (modelFile != null) {
+            SerializationHelper.write(modelFile, booster);
+        }
+    }
+}
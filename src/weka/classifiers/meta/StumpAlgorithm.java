@@ -1,8 +1,5 @@
 package weka.classifiers.meta;
 
-import java.util.ArrayList;
-import java.util.Map;
-
 // This is a class to get the best stump in a decision stump.
 // Edge is used here. It is a vector with length of "numClasses", and in the thesis it defined as:
 // \mbox{edge}:  \gamma = \sum_{l=1}^{k}\sum_{i=1}^{n}w_{i,l}v_{l}\varphi\left ( x_{i} \right )y_{i,l}  \\ (1)
@@ -32,6 +29,9 @@ public class StumpAlgorithm {
     // Instances to be trained or tested
     protected ExtendedInstances m_trainingInsts;
 
+    // The class-wise loops over the weights and labels of one instance, scalar or SIMD.
+    protected EdgeKernels m_kernels = EdgeKernels.getInstance();
+
     // Half value of the total weights per class. The i-th array item represents a sum of weights of the i-th class.
     // \mbox{m\_halfWeightsPerClass[l]} = \frac{1}{2}\sum_{i=1}^{n}w_{i,l} \quad l\in \left \{ 1 .. K \right \}
     protected double[] m_halfWeightsPerClass;
@@ -43,6 +43,21 @@ public class StumpAlgorithm {
     // The sum of all the elements in double array "m_initHalfEdges".
     protected double m_initHalfEdge = 0;
 
+    // The maximum half edge over all the splits found in the last call of "findBestStumpOfSpecificAttr".
+    // Unlike the best half edge, it is not affected by the precision used to compare the edges,
+    // so it is used as the exact bound in AttributeEdgeBounds.
+    protected double m_maxHalfEdge = 0;
+
+    // Whether the instances only keep the classes whose weights are not negligible (see ExtendedInstances.dropSmallWeights).
+    protected boolean m_sparseClasses = false;
+
+    // In the sparse class mode, the products w_{i,l}y_{i,l} of the kept classes of all the instances, computed once in
+    // "initHalfEdge" and laid out instance by instance: the ones of the i-th instance are in
+    // [m_entryStarts[i], m_entryStarts[i + 1]), and m_entryClasses keeps their classes.
+    protected int[] m_entryStarts;
+    protected int[] m_entryClasses;
+    protected double[] m_entryProducts;
+
 
     public StumpAlgorithm (ExtendedInstances trainingInsts) {
         m_trainingInsts = trainingInsts;
@@ -50,6 +65,7 @@ public class StumpAlgorithm {
         m_numAttrs = m_trainingInsts.numAttributes();
         m_numClasses = m_trainingInsts.numClasses();
         m_numInstances = m_trainingInsts.numInstances();
+        m_sparseClasses = m_trainingInsts.isSparseClasses();
 
         m_halfWeightsPerClass = new double[m_numClasses];
         m_initHalfEdgesArray = new double[m_numClasses];
@@ -66,11 +82,12 @@ public class StumpAlgorithm {
      * @return threshold: the mean values of the two attributes before and after the best split point.
      */
     public double findBestStumpOfSpecificAttr (int attrIndex, double[] V, double[] halfEdge) {
-        // Get the ArrayList of all the instances which are sorted by index-th attribute ascendingly.
-        ArrayList<Map.Entry<Integer, Double>> sortedInstances = m_trainingInsts.getSortedAttrsByIndex(attrIndex);
+        if (m_sparseClasses) {
+            return findBestSparseStumpOfSpecificAttr(attrIndex, V, halfEdge);
+        }
 
-        // The threshold used in function \varphi\left ( x \right )
-        double threshold = 0;
+        // Get the column of all the instances which are sorted by index-th attribute ascendingly.
+        AttributeColumn sortedInstances = m_trainingInsts.getColumn(attrIndex);
 
         // Half value of the current class-wise edges
         double[] currHalfEdgesArray = new double[m_numClasses];
@@ -80,11 +97,19 @@ public class StumpAlgorithm {
         // The position of the best split is between "bestSplitPos" and the one previous
         int bestSplitPos = 0;
         ////////////int bestSplitPos = 1;
+        // The position of the instance just before the best split. It is "bestSplitPos - 1" unless some instances
+        // are masked out of the training data.
+        int bestPreviousPos = -1;
+
+        // The rows in the training data, or null if all the instances are used in training.
+        // The other rows are kept in the columns, but are skipped here (such as the test fold in cross validation).
+        boolean[] activeRows = m_trainingInsts.getActiveRows();
 
         // The sum of all the elements in the best edge vector currently found.
         // Initialize it with threshold = -\infty.
         double bestHalfEdge = m_initHalfEdge;
         ////////////double bestHalfEdge = Double.MIN_VALUE;
+        m_maxHalfEdge = m_initHalfEdge;
 
         // Half value of the edges of the best found threshold. Each array item is an element of edge (\gamma) vector.
         double[] bestHalfEdgesArray = new double[m_numClasses];
@@ -104,45 +129,64 @@ public class StumpAlgorithm {
         // It is notable that \varphi\left ( x_{i} \right ) is hided here:
         // on the right of current position, varphi\left ( x_{i} \right ) = +1;
         // on the left of current position, varphi\left ( x_{i} \right ) = -1;
-        for (int currentPos = 1; currentPos <= m_numInstances; currentPos++) {
+        //
+        // The instances are stepped over run by run, where a run is a sequence of instances with equal values
+        // (see AttributeColumn.getRunEnds). No threshold can be put between two equal values, so the edges only need
+        // to be evaluated at the end of each run. Attributes with few distinct values (such as binarized pixels)
+        // only evaluate a few splits, while each instance in a run is just subtracted in a tight loop.
+        int numRuns = sortedInstances.numRuns();
+        int runStart = 0;
+        for (int run = 0; run < numRuns; run++) {
         ////////////////////////for (int currentPos = 1; currentPos < m_numInstances; currentPos++) {
-            // In this iteration, we stepped over the instance with index of "currentPos - 1".
-            int previousPos = currentPos - 1;
-
-            // Get the instance stepped over in the ArrayList which is sorted by the "attrIndex"-th attribute.
-            int instIndex = sortedInstances.get(previousPos).getKey();
-
-            // Get all the labels of the "instIndex"-th instances.
-            int[] labels = m_trainingInsts.getLabels(instIndex);
-            // Get all the weights of the "instIndex"-th instances.
-            double[] weights = m_trainingInsts.getWeights(instIndex);
-
-            // Recompute half edges at the next point
-            for (int l = 0; l < m_numClasses; l++) {
-                // Following is the equation: \gamma_{l} \leftarrow \gamma_{l} - 2w_{i,l}y_{i,l} \\ in the paper.
-                // However, we use half value of edge, so do not need "2" any more.
-                currHalfEdgesArray[l] -= weights[l] * labels[l];
+            int runEnd = sortedInstances.runEnd(run);
+
+            // The position of the last instance stepped over in this run, or -1 if all of them are masked out.
+            int previousPos = -1;
+
+            // Recompute half edges after stepping over all the instances in this run
+            // Following is the equation: \gamma_{l} \leftarrow \gamma_{l} - 2w_{i,l}y_{i,l} \\ in the paper.
+            // However, we use half value of edge, so do not need "2" any more.
+            for (int pos = runStart; pos < runEnd; pos++) {
+                // Get the instance stepped over in the column which is sorted by the "attrIndex"-th attribute.
+                int instIndex = sortedInstances.sortedIndex(pos);
+                if (activeRows != null && !activeRows[instIndex]) {
+                    continue;
+                }
+
+                // Subtract all the weights times the labels of the "instIndex"-th instance.
+                m_trainingInsts.subtractEdges(m_kernels, currHalfEdgesArray, instIndex);
+                previousPos = pos;
+            }
+            runStart = runEnd;
+
+            if (previousPos < 0) {
+                continue;
+            }
+
+            // The split is between previousPos and currentPos.
+            int currentPos = runEnd;
+            if (activeRows != null) {
+                // Move currentPos to the next instance in the training data, so the split is between two of them.
+                while (currentPos < m_numInstances && !activeRows[sortedInstances.sortedIndex(currentPos)]) {
+                    currentPos++;
+                }
             }
 
             // Compare the attributes values of current and previous instances. If they are not same,
             // we need to recalculate the \gamma to check whether it is bigger then the current best edge "bestHalfEdge".
-            double currentVal = (currentPos == m_numInstances) ? Double.MAX_VALUE : sortedInstances.get(currentPos).getValue();
-            /////////////////double currentVal = sortedInstances.get(currentPos).getValue();
-            double previousVal = sortedInstances.get(previousPos).getValue();
+            double currentVal = (currentPos == m_numInstances) ? Double.MAX_VALUE : sortedInstances.sortedValue(currentPos);
+            /////////////////double currentVal = sortedInstances.sortedValue(currentPos);
+            double previousVal = sortedInstances.sortedValue(previousPos);
             if (Math.abs(currentVal - previousVal) > m_DoublePrecision) {   // check whether they are equal.
-                double currHalfEdge = 0;          // the sum of all the elements in the current edge vector "halfEdges"
-
-                for (int l = 0; l < m_numClasses; l++) {
-                    // \gamma_{l} = v_{l}\left ( \mu_{l^{+}}-\mu_{l^{-}} \right ) = v_{l}\sum_{i=1}^{n}w_{i,l}\varphi\left ( x_{i} \right )y_{i,l}
-                    // \gamma_{l} represents the difference between correct rate and error rate related to label l.
-                    // The algorithm tries to adjust \gamma_{l} to stay positive by using v_{l}.
-                    // That is the reason why \gamma_{l} won't be negative.
-                    if ( currHalfEdgesArray[l] > 0 ) {
-                        currHalfEdge += currHalfEdgesArray[l];
-                    }
-                    else {
-                        currHalfEdge -= currHalfEdgesArray[l];
-                    }
+                // the sum of all the elements in the current edge vector "halfEdges"
+                // \gamma_{l} = v_{l}\left ( \mu_{l^{+}}-\mu_{l^{-}} \right ) = v_{l}\sum_{i=1}^{n}w_{i,l}\varphi\left ( x_{i} \right )y_{i,l}
+                // \gamma_{l} represents the difference between correct rate and error rate related to label l.
+                // The algorithm tries to adjust \gamma_{l} to stay positive by using v_{l}.
+                // That is the reason why \gamma_{l} won't be negative.
+                double currHalfEdge = m_kernels.sumAbs(currHalfEdgesArray, m_numClasses);
+
+                if (currHalfEdge > m_maxHalfEdge) {
+                    m_maxHalfEdge = currHalfEdge;
                 }
 
                 // check whether the current edge is the new maximum
@@ -154,6 +198,7 @@ public class StumpAlgorithm {
                 {
                     bestHalfEdge = currHalfEdge;
                     bestSplitPos = currentPos;
+                    bestPreviousPos = previousPos;
 
                     for (int l = 0; l < m_numClasses; ++l) {
                         // Fixme: Why, in the C++ implementation of multiboost, they use a minus before currHalfEdges[l]?
@@ -167,6 +212,16 @@ public class StumpAlgorithm {
         // Return the best half edge of current attribute (the attrIndex-th attribute).
         halfEdge[0] = bestHalfEdge;
 
+        return getVotesAndThreshold(sortedInstances, bestHalfEdgesArray, bestSplitPos, bestPreviousPos, V);
+    }
+
+    // Calculate the vote vector V from the class-wise half edges of the best split, and return the threshold of the split,
+    // which is between bestSplitPos and bestPreviousPos.
+    private double getVotesAndThreshold (AttributeColumn sortedInstances, double[] bestHalfEdgesArray,
+                                         int bestSplitPos, int bestPreviousPos, double[] V) {
+        // The threshold used in function \varphi\left ( x \right )
+        double threshold = 0;
+
         // Calculate all the elements of vote vector V.
         for (int l = 0; l < m_numClasses; ++l)
         {
@@ -189,31 +244,161 @@ public class StumpAlgorithm {
         }
         else {
             // The threshold is the average of the attributes values on ""bestSplitPos and its previous one.
-            threshold = (sortedInstances.get(bestSplitPos).getValue() + sortedInstances.get(bestSplitPos-1).getValue()) / 2.0;
+            threshold = (sortedInstances.sortedValue(bestSplitPos) + sortedInstances.sortedValue(bestPreviousPos)) / 2.0;
         }/**/
-        /////////////////threshold = (sortedInstances.get(bestSplitPos).getValue() + sortedInstances.get(bestSplitPos-1).getValue()) / 2.0;
+        /////////////////threshold = (sortedInstances.sortedValue(bestSplitPos) + sortedInstances.sortedValue(bestSplitPos-1)) / 2.0;
 
         return threshold;
     }
 
+    // The same search as "findBestStumpOfSpecificAttr" in the sparse class mode, in which each instance only keeps a few
+    // of the K classes. Stepping over an instance only updates the half edges of its kept classes, and the sum of the
+    // absolute half edges is updated by the changes of these classes instead of being summed over all the K classes
+    // at each split. So the scan costs the number of kept classes instead of K per instance.
+    // The half edges of the best split are not copied at each better split, but computed again in the end by stepping
+    // over the instances before the best split.
+    protected double findBestSparseStumpOfSpecificAttr (int attrIndex, double[] V, double[] halfEdge) {
+        AttributeColumn sortedInstances = m_trainingInsts.getColumn(attrIndex);
+        boolean[] activeRows = m_trainingInsts.getActiveRows();
+
+        double[] currHalfEdgesArray = m_initHalfEdgesArray.clone();
+        double currHalfEdge = m_initHalfEdge;
+
+        int bestSplitPos = 0;
+        int bestPreviousPos = -1;
+        double bestHalfEdge = m_initHalfEdge;
+        m_maxHalfEdge = m_initHalfEdge;
+
+        int numRuns = sortedInstances.numRuns();
+        int runStart = 0;
+        for (int run = 0; run < numRuns; run++) {
+            int runEnd = sortedInstances.runEnd(run);
+
+            int previousPos = -1;
+            for (int pos = runStart; pos < runEnd; pos++) {
+                int instIndex = sortedInstances.sortedIndex(pos);
+                if (activeRows != null && !activeRows[instIndex]) {
+                    continue;
+                }
+                currHalfEdge += subtractSparseEdges(currHalfEdgesArray, instIndex);
+                previousPos = pos;
+            }
+            runStart = runEnd;
+
+            if (previousPos < 0) {
+                continue;
+            }
+
+            int currentPos = runEnd;
+            if (activeRows != null) {
+                while (currentPos < m_numInstances && !activeRows[sortedInstances.sortedIndex(currentPos)]) {
+                    currentPos++;
+                }
+            }
+
+            double currentVal = (currentPos == m_numInstances) ? Double.MAX_VALUE : sortedInstances.sortedValue(currentPos);
+            double previousVal = sortedInstances.sortedValue(previousPos);
+            if (Math.abs(currentVal - previousVal) > m_DoublePrecision) {
+                if (currHalfEdge > m_maxHalfEdge) {
+                    m_maxHalfEdge = currHalfEdge;
+                }
+                if ((currHalfEdge - bestHalfEdge) > m_DoublePrecision) {
+                    bestHalfEdge = currHalfEdge;
+                    bestSplitPos = currentPos;
+                    bestPreviousPos = previousPos;
+                }
+            }
+        }
+
+        halfEdge[0] = bestHalfEdge;
+
+        // Step over the instances before the best split again to get its class-wise half edges.
+        double[] bestHalfEdgesArray = m_initHalfEdgesArray.clone();
+        for (int pos = 0; pos <= bestPreviousPos; pos++) {
+            int instIndex = sortedInstances.sortedIndex(pos);
+            if (activeRows == null || activeRows[instIndex]) {
+                subtractSparseEdges(bestHalfEdgesArray, instIndex);
+            }
+        }
+
+        return getVotesAndThreshold(sortedInstances, bestHalfEdgesArray, bestSplitPos, bestPreviousPos, V);
+    }
+
+    // Step over the instIndex-th instance: edges[l] -= w_{i,l}y_{i,l} for its kept classes.
+    // Returns the change of the sum of the absolute values of the edges.
+    private double subtractSparseEdges (double[] edges, int instIndex) {
+        double change = 0;
+        for (int e = m_entryStarts[instIndex]; e < m_entryStarts[instIndex + 1]; e++) {
+            int l = m_entryClasses[e];
+            double previous = edges[l];
+            double current = previous - m_entryProducts[e];
+            edges[l] = current;
+            change += Math.abs(current) - Math.abs(previous);
+        }
+        return change;
+    }
+
+    // Lay out the products w_{i,l}y_{i,l} of the kept classes of all the instances, see "m_entryProducts".
+    // The zero weights, which are the dropped classes outside the heap (see ExtendedInstances.dropSmallWeights), are
+    // skipped: their products would not change the edges.
+    private void initSparseEntries () {
+        m_entryStarts = new int[m_numInstances + 1];
+        for (int i = 0; i < m_numInstances; i++) {
+            int numKept = 0;
+            for (int a = 0; a < m_trainingInsts.numEntries(i); a++) {
+                if (m_trainingInsts.getWeight(i, a) != 0) {
+                    numKept++;
+                }
+            }
+            m_entryStarts[i + 1] = m_entryStarts[i] + numKept;
+        }
+
+        m_entryClasses = new int[m_entryStarts[m_numInstances]];
+        m_entryProducts = new double[m_entryStarts[m_numInstances]];
+        for (int i = 0; i < m_numInstances; i++) {
+            int e = m_entryStarts[i];
+            for (int a = 0; a < m_trainingInsts.numEntries(i); a++) {
+                double weight = m_trainingInsts.getWeight(i, a);
+                if (weight != 0) {
+                    m_entryClasses[e] = m_trainingInsts.getEntryClass(i, a);
+                    m_entryProducts[e] = weight * m_trainingInsts.getLabel(i, a);
+                    e++;
+                }
+            }
+        }
+    }
+
+    // get the maximum half edge over all the splits found in the last call of "findBestStumpOfSpecificAttr"
+    public double getMaxHalfEdge () { return m_maxHalfEdge; }
+
+    // get the half edge of the constant stump (all the instances on one side), which every attribute reaches
+    public double getInitHalfEdge () { return m_initHalfEdge; }
+
     // Calculate the initial element values of gamma/edge (weights edges) vector.
     // Here, however, we calculate half edge, so initial elements of half gamma/edge vector equals to:
     // \mbox{element\ in\ the\ initial\ half\ edge}:  \frac{1}{2}\gamma_{l}^{(0)} = \frac{1}{2}\sum_{i=1}^{n}w_{i,l}y_{i,l} \quad l\in \left \{ 1 .. K \right \}  \\
     public void initHalfEdge () {
         // Iterate all the instances to handle their weights and labels respectively.
         for (int i = 0; i < m_numInstances; i++) {
-            // Get all the labels of the i-th instances.
-            int[] labels = m_trainingInsts.getLabels(i);
-            // Get all the weights of the i-th instances.
-            double[] weights = m_trainingInsts.getWeights(i);
+            // In the sparse class mode, only the kept classes of the instance are added.
+            if (m_sparseClasses) {
+                for (int a = 0; a < m_trainingInsts.numEntries(i); a++) {
+                    int l = m_trainingInsts.getEntryClass(i, a);
+                    double weight = m_trainingInsts.getWeight(i, a);
+                    m_halfWeightsPerClass[l] += weight;
+                    m_initHalfEdgesArray[l] += weight * m_trainingInsts.getLabel(i, a);
+                }
+                continue;
+            }
 
             // Iterate all the weights and labels of the current instance.
-            for (int l = 0; l < m_numClasses; l++) {
-                // Add all the weights respectively into their corresponding classes.
-                m_halfWeightsPerClass[l] += weights[l];
-                // Calculate the initial value of edges.
-                m_initHalfEdgesArray[l] += weights[l] * labels[l];
-            }
+            // Add all the weights respectively into their corresponding classes,
+            // and calculate the initial value of edges.
+            m_trainingInsts.addWeightsAndEdges(m_kernels, m_halfWeightsPerClass, m_initHalfEdgesArray, i);
+        }
+
+        if (m_sparseClasses) {
+            initSparseEntries();
         }
 
         // Calculate half edges and half weights
@@ -3,26 +3,41 @@ package weka.classifiers.meta;
 import weka.core.Attribute;
 import weka.core.Instance;
 
+import java.util.Arrays;
+
 // This is a Class of one instance x:
-// It contains: attributes[m_NumAttrs] array, labels[m_NumClasses] array, weights[m_NumClasses] array of this instance x
+// It contains: labels[m_NumClasses] array, weights[m_NumClasses] array of this instance x
+// The attributes of x are kept column by column in ExtendedInstances (see AttributeColumn).
+// In the sparse class mode (see ExtendedInstances.dropSmallWeights), only the classes whose weights are not negligible
+// are kept: the a-th label and weight belong to the class m_Classes[a], and the weights of the other classes are 0.
 public class WeightedMultiLabeledInstance {
-    protected double[] m_AttrValues;
     protected int[] m_Labels;
     protected double[] m_Weights;
 
-    public WeightedMultiLabeledInstance(Instance data, int numAttrs, int numClasses, int numInsts) {
-        this.m_AttrValues = new double[numAttrs];
+    // The classes of the labels and weights, or null if all the classes are kept, in which case the a-th label and
+    // weight belong to the a-th class.
+    protected int[] m_Classes = null;
+
+    // The class of this instance, and the number of classes
+    protected int m_classIndex;
+    protected int m_numClasses;
+
+    public WeightedMultiLabeledInstance(Instance data, int numClasses, int numInsts) {
+        this.m_numClasses = numClasses;
         this.m_Labels = new int[numClasses];
         this.m_Weights = new double[numClasses];
 
-        this.initAttributes(data, numAttrs);
         this.initLabels(data, numClasses);              // must use it before function initWeights
-        this.initWeights(data, numClasses, numInsts);
+        this.initWeights(numInsts);
     }
 
-    // copy all the attributes expect the class value to the attribute array
-    private void initAttributes (Instance data, int numAttrs) {
-        System.arraycopy(data.toDoubleArray(), 0, m_AttrValues, 0, numAttrs);
+    // Create a copy of the given instance with its own labels and weights.
+    public WeightedMultiLabeledInstance(WeightedMultiLabeledInstance other) {
+        this.m_Labels = other.m_Labels.clone();
+        this.m_Weights = other.m_Weights.clone();
+        this.m_Classes = (other.m_Classes == null) ? null : other.m_Classes.clone();
+        this.m_classIndex = other.m_classIndex;
+        this.m_numClasses = other.m_numClasses;
     }
 
     // initialize all the labels, set them +1 or -1, according to the actual class value of this instance
@@ -43,13 +58,24 @@ public class WeightedMultiLabeledInstance {
 
         // set the label to 1, means it is the classification the current instance belongs to
         m_Labels[index] = 1;
+        m_classIndex = index;
     }
 
     // initialize all the weights according to the labels:
     // if y_l[x_i] = +1, then w_l[x_i] = 1/(2*n)
     // if y_l[x_i] = -1, then w_l[x_i] = 1/(2*n*(K-1))
     // n is the number of instances, K is the number of classes.
-    private void initWeights (Instance data, int numClasses, int numInsts) {
+    // It is also used to reset the weights when the number of instances changes, which keeps all the classes again.
+    public void initWeights (int numInsts) {
+        if (m_Classes != null) {
+            m_Classes = null;
+            m_Labels = new int[m_numClasses];
+            m_Weights = new double[m_numClasses];
+            Arrays.fill(m_Labels, -1);
+            m_Labels[m_classIndex] = 1;
+        }
+
+        int numClasses = m_Labels.length;
         for (int i = 0; i < numClasses; i++) {
             if (m_Labels[i] == 1) {
                 m_Weights[i] = (double)1 / (2 * numInsts);
@@ -64,13 +90,53 @@ public class WeightedMultiLabeledInstance {
         }
     }
 
-    // get the attributes array of the current instance
-    public double[] getAttrValues () { return m_AttrValues; }
+    // multiply all the weights by a factor, used to renormalize the weights when new instances are appended
+    public void scaleWeights (double factor) {
+        for (int i = 0; i < m_Weights.length; i++) {
+            m_Weights[i] *= factor;
+        }
+    }
+
+    // Drop the weights smaller than minWeight (and their labels), so that only the other classes are kept.
+    // Returns the sum of the kept weights.
+    public double dropWeights (double minWeight) {
+        int numKept = 0;
+        double sumKept = 0;
+        for (double weight : m_Weights) {
+            if (weight >= minWeight) {
+                numKept++;
+                sumKept += weight;
+            }
+        }
+        if (numKept == m_Weights.length) {
+            return sumKept;
+        }
+
+        int[] classes = new int[numKept];
+        int[] labels = new int[numKept];
+        double[] weights = new double[numKept];
+        int kept = 0;
+        for (int a = 0; a < m_Weights.length; a++) {
+            if (m_Weights[a] >= minWeight) {
+                classes[kept] = (m_Classes == null) ? a : m_Classes[a];
+                labels[kept] = m_Labels[a];
+                weights[kept] = m_Weights[a];
+                kept++;
+            }
+        }
+        m_Classes = classes;
+        m_Labels = labels;
+        m_Weights = weights;
+        return sumKept;
+    }
 
     // get the labels array of the current instance
     public int[] getLabels () { return m_Labels; }
 
     // get the weights array of the current instance
     public double[] getWeights () { return m_Weights; }
+
+    // get the classes of the labels and weights, or null if all the classes are kept
+    public int[] getClasses () { return m_Classes; }
 }
 